@@ -1,6 +1,8 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.FileSystemOptions;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.VolumeRegistry;
 
 import java.io.IOException;
 
@@ -8,7 +10,23 @@ public class Main {
     public static void main(String[] args) throws IOException {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // Optional arguments: volume size in bytes, block size in bytes (used only when the volume is created),
+        // then name=file for every extra volume, e.g. one per disk. Clients reach those as "name:file".
+        long totalSize = args.length > 0 ? Long.parseLong(args[0]) : 10 * 128;
+        FileSystemOptions options = new FileSystemOptions(totalSize);
+        if (args.length > 1) {
+            options.blockSize(Integer.parseInt(args[1]));
+        }
+        VolumeRegistry volumes = new VolumeRegistry();
+        volumes.mount(FileServer.DEFAULT_VOLUME, "filesystem.dat", options);
+        for (int i = 2; i < args.length; i++) {
+            String[] volume = args[i].split("=", 2);
+            if (volume.length < 2) {
+                throw new IllegalArgumentException("Expected name=file, got " + args[i]);
+            }
+            volumes.mount(volume[0], volume[1], options);
+        }
+        FileServer server = new FileServer(12345, volumes);
         // Start the file server
         server.start();
     }
@@ -0,0 +1,55 @@
+package ca.concordia.filesystem;
+
+// Fragmentation of the volume, a snapshot taken when getAllocationStats() is called
+public class AllocationStats {
+
+    private final long freeBlocks;
+    private final long freeRuns;        // Maximal runs of free blocks
+    private final long largestFreeRun;  // Blocks in the largest of them
+    private final long files;
+    private final long fileExtents;     // Contiguous runs over all files, one per file when nothing is fragmented
+
+    AllocationStats(long freeBlocks, long freeRuns, long largestFreeRun, long files, long fileExtents) {
+        this.freeBlocks = freeBlocks;
+        this.freeRuns = freeRuns;
+        this.largestFreeRun = largestFreeRun;
+        this.files = files;
+        this.fileExtents = fileExtents;
+    }
+
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public long getFreeRuns() {
+        return freeRuns;
+    }
+
+    public long getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getFileExtents() {
+        return fileExtents;
+    }
+
+    // Share of the free space outside the largest free run: 0 when it is all in one piece
+    public double getFreeSpaceFragmentation() {
+        return freeBlocks == 0 ? 0 : 1 - (double) largestFreeRun / freeBlocks;
+    }
+
+    // Extents per non-empty file, 1 when every file can be read sequentially
+    public double getExtentsPerFile() {
+        return files == 0 ? 0 : (double) fileExtents / files;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d free blocks in %d runs (%.1f%% fragmented), %.2f extents per file",
+                freeBlocks, freeRuns, 100 * getFreeSpaceFragmentation(), getExtentsPerFile());
+    }
+}
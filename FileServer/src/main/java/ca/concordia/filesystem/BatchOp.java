@@ -0,0 +1,50 @@
+package ca.concordia.filesystem;
+
+// One operation of a batch given to FileSystemManager.applyBatch()
+public class BatchOp {
+
+    public enum Type {
+        CREATE,
+        WRITE,
+        APPEND,
+        DELETE
+    }
+
+    private final Type type;
+    private final String fileName;
+    private final byte[] data;      // null for CREATE and DELETE
+
+    private BatchOp(Type type, String fileName, byte[] data) {
+        this.type = type;
+        this.fileName = fileName;
+        this.data = data;
+    }
+
+    public static BatchOp create(String fileName) {
+        return new BatchOp(Type.CREATE, fileName, null);
+    }
+
+    public static BatchOp write(String fileName, byte[] data) {
+        return new BatchOp(Type.WRITE, fileName, data);
+    }
+
+    public static BatchOp append(String fileName, byte[] data) {
+        return new BatchOp(Type.APPEND, fileName, data);
+    }
+
+    public static BatchOp delete(String fileName) {
+        return new BatchOp(Type.DELETE, fileName, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,45 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+
+// Streams reading one version of a file's blocks without holding the file's lock, see FileSystemManager.streamFile().
+// While a version is pinned its blocks are not changed in place. When the file moves on to other blocks,
+// releasing the old ones is left to the last stream still reading them.
+class BlockPins {
+
+    private int readers;
+    private FEntry retired;         // the replaced version, once the file moved on while it was pinned
+    private Transaction tx;         // the change that replaced it, durable before the blocks may go
+
+    synchronized void pin() {
+        readers++;
+    }
+
+    synchronized boolean isPinned() {
+        return readers > 0;
+    }
+
+    // Hands over the release of a replaced version. Returns false, keeping nothing, when no stream is
+    // reading it: the caller releases it as usual.
+    synchronized boolean retire(FEntry version, Transaction tx) {
+        if (readers == 0) {
+            return false;
+        }
+        this.retired = version;
+        this.tx = tx;
+        return true;
+    }
+
+    // True when this was the last stream of a retired version, which the caller must now release
+    synchronized boolean unpin() {
+        return --readers == 0 && retired != null;
+    }
+
+    synchronized FEntry getRetired() {
+        return retired;
+    }
+
+    synchronized Transaction getTransaction() {
+        return tx;
+    }
+}
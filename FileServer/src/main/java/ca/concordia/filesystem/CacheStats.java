@@ -0,0 +1,37 @@
+package ca.concordia.filesystem;
+
+// Counters of the block cache, a snapshot taken when getCacheStats() is called
+public class CacheStats {
+
+    private final long hits;            // Extent reads served from memory
+    private final long misses;          // Extent reads that went to disk
+    private final long evictions;       // Blocks pushed out to make room
+
+    CacheStats(long hits, long misses, long evictions) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit ratio), %d evictions",
+                hits, misses, 100 * getHitRatio(), evictions);
+    }
+}
@@ -0,0 +1,15 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Receives a file chunk by chunk from FileSystemManager.streamFile().
+// The buffer is only valid during the call, its bytes are between position and limit.
+@FunctionalInterface
+public interface ChunkConsumer {
+    void accept(ByteBuffer chunk) throws IOException;
+
+    // Called once before the first chunk, also for an empty range, with the number of bytes that follow
+    default void start(long length) throws IOException {
+    }
+}
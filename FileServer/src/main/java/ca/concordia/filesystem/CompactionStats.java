@@ -0,0 +1,54 @@
+package ca.concordia.filesystem;
+
+// Progress of the compactor, a snapshot taken when getCompactionStats() is called.
+// Fragmentation itself is reported by getAllocationStats().
+public class CompactionStats {
+
+    private final long passes;          // Passes over the whole inode table completed
+    private final long filesCompacted;  // Files moved into one contiguous run
+    private final long blocksMoved;
+    private final long bytesCopied;     // Includes copies thrown away because the file changed meanwhile
+    private final boolean running;
+    private final double progress;      // Share of the current pass done, 0 when no pass is running
+
+    CompactionStats(long passes, long filesCompacted, long blocksMoved, long bytesCopied,
+                    boolean running, double progress) {
+        this.passes = passes;
+        this.filesCompacted = filesCompacted;
+        this.blocksMoved = blocksMoved;
+        this.bytesCopied = bytesCopied;
+        this.running = running;
+        this.progress = progress;
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    public long getFilesCompacted() {
+        return filesCompacted;
+    }
+
+    public long getBlocksMoved() {
+        return blocksMoved;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d passes, %d files compacted, %d blocks moved (%d bytes copied)%s",
+                passes, filesCompacted, blocksMoved, bytesCopied,
+                running ? String.format(", pass %.0f%% done", 100 * progress) : "");
+    }
+}
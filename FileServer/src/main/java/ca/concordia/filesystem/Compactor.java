@@ -0,0 +1,115 @@
+package ca.concordia.filesystem;
+
+// Moves fragmented files into one contiguous run each, see FileSystemManager.compactFile().
+//
+// A pass visits every inode slot once. It runs on a background thread every PASS_INTERVAL_MS when the
+// volume was given a compaction rate, or on the caller's thread through FileSystemManager.compact().
+// Copying goes through a token bucket: bytesPerSecond tokens come in every second, up to one second's
+// worth, and a copy that takes more than there are waits until the debt is paid back. So the compactor
+// never uses more than its share of the disk, however much there is to move.
+class Compactor {
+
+    private static final long PASS_INTERVAL_MS = 30_000;
+
+    private final FileSystemManager fs;
+    private final int slots;
+    private final long bytesPerSecond;      // 0 means unthrottled
+    private final Object passLock = new Object();   // one pass at a time
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    private long passes;
+    private long filesCompacted;
+    private long blocksMoved;
+    private long bytesCopied;
+    private volatile int slot;              // Slot the current pass is at
+    private volatile boolean running;
+
+    Compactor(FileSystemManager fs, int slots, long bytesPerSecond) {
+        this.fs = fs;
+        this.slots = slots;
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    // Background passes, until stop()
+    void start() {
+        thread = new Thread(() -> {
+            while (!stopped) {
+                try {
+                    runPass();
+                    Thread.sleep(PASS_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;                 // stop() was called
+                } catch (Exception e) {
+                    e.printStackTrace();    // try again next pass
+                }
+            }
+        }, "fs-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // One pass over the inode table
+    void runPass() throws Exception {
+        synchronized (passLock) {
+            running = true;
+            try {
+                for (slot = 0; slot < slots && !stopped; slot++) {
+                    int moved = fs.compactFile(slot, this);
+                    if (moved > 0) {
+                        synchronized (this) {
+                            filesCompacted++;
+                            blocksMoved += moved;
+                        }
+                    }
+                }
+                synchronized (this) {
+                    passes++;
+                }
+            } finally {
+                running = false;
+            }
+        }
+    }
+
+    // Takes bytes from the budget before they are copied, waiting for them if needed
+    void throttle(long bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            bytesCopied += bytes;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            wait = tokens < 0 ? (long) (-tokens * 1000 / bytesPerSecond) : 0;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    synchronized CompactionStats getStats() {
+        double progress = running ? (double) slot / slots : 0;
+        return new CompactionStats(passes, filesCompacted, blocksMoved, bytesCopied, running, progress);
+    }
+}
@@ -0,0 +1,38 @@
+package ca.concordia.filesystem;
+
+// Effect of deduplication, a snapshot taken when getDedupStats() is called. All zero on other volumes.
+public class DedupStats {
+
+    private final long logicalBlocks;   // Blocks the files hold, counting shared ones once per file
+    private final long physicalBlocks;  // Blocks actually used on the volume
+    private final long sharedWrites;    // Block writes avoided by pointing to an identical block
+
+    DedupStats(long logicalBlocks, long physicalBlocks, long sharedWrites) {
+        this.logicalBlocks = logicalBlocks;
+        this.physicalBlocks = physicalBlocks;
+        this.sharedWrites = sharedWrites;
+    }
+
+    public long getLogicalBlocks() {
+        return logicalBlocks;
+    }
+
+    public long getPhysicalBlocks() {
+        return physicalBlocks;
+    }
+
+    public long getSharedWrites() {
+        return sharedWrites;
+    }
+
+    // How many times more data the files hold than the volume stores, 1 when nothing is shared
+    public double getDedupRatio() {
+        return physicalBlocks == 0 ? 1 : (double) logicalBlocks / physicalBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d logical blocks in %d physical blocks (%.2fx), %d block writes avoided",
+                logicalBlocks, physicalBlocks, getDedupRatio(), sharedWrites);
+    }
+}
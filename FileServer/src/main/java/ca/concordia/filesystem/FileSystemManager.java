@@ -1,317 +1,1901 @@
 package ca.concordia.filesystem;
 
+import ca.concordia.filesystem.datastructures.BlockCache;
+import ca.concordia.filesystem.datastructures.DedupIndex;
 import ca.concordia.filesystem.datastructures.FEntry;
-
+import ca.concordia.filesystem.datastructures.FileIndex;
+import ca.concordia.filesystem.datastructures.Extent;
+import ca.concordia.filesystem.datastructures.FreeBlockBitmap;
+import ca.concordia.filesystem.datastructures.FreeExtentIndex;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.storage.BlockStore;
+import ca.concordia.filesystem.storage.BufferPool;
+import ca.concordia.filesystem.storage.StorageMode;
+
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
-import java.io.File;
-import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileSystemManager implements Closeable {
+
+    private final int MAXFILES;     // Geometry of the mounted volume, read from its superblock
+    private final int MAXBLOCKS;
+    private final int BLOCK_SIZE;
+
+    // Reads and writes of a file only contend with operations on files sharing its lock stripe.
+    // metadataLock guards the bitmap, the free runs, the dedup index, the free slots and the name index,
+    // and is held briefly. Those classes do no locking of their own.
+    // Lock order: writer lock, then read/write lock, then metadataLock.
+    private static final int LOCK_STRIPES = 64;
+    private final ReaderWriterLock[] fileLocks;
+    private final ReentrantLock[] writerLocks;     // One writer per file at a time, readers are not blocked
+    private final ReentrantLock metadataLock = new ReentrantLock();
+    private final AtomicReferenceArray<BlockPins> pins;    // Streams on the current version of each slot, null if none yet
+
+    private final BlockStore disk;
+
+    private static final int END_OF_FILE = -1;           // writeInPlace() offset meaning "append"
+    private static final int ZERO_CHUNK = 64 * 1024;     // Largest single write used to erase data
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(ZERO_CHUNK).asReadOnlyBuffer();
+    private static final int POOLED_BUFFERS = 64;        // Direct buffers kept for reads, see BufferPool
+    private static final int READ_BUFFER_SIZE = 128 * 1024;     // Size of those buffers, and of streamed chunks
+    private static final int COMPRESSION_CHUNK = 64 * 1024;     // Bytes of a file compressed together, see compress()
+
+    // Locked part of a change run by the async API, see changeAsync()
+    private interface FileChange {
+        FEntry apply(Transaction tx) throws Exception;     // returns the old version to release, if any
+    }
 
-public class FileSystemManager {
-
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-
-    private final Semaphore mutex = new Semaphore(1);      // protects readerCount
-    private final Semaphore writeLock = new Semaphore(1);  // blocks writers OR readers
-    private final Semaphore readerBlock = new Semaphore(1); // using this to prevent starvation of a reader
-    private int readerCount = 0;
-
-//    private final static FileSystemManager instance;
-    //Implement as a singleton class (so one instance but a global point of access)
-    private static volatile FileSystemManager instance;
-    private final RandomAccessFile disk;
-    private final ReentrantLock globalLock = new ReentrantLock();
+    // Inode record layout, see writeInode()
+    private static final int INODE_NAME_OFFSET = 2;      // 11 characters of UTF-8 take at most 33 bytes
+    private static final int INODE_FLAGS_OFFSET = 35;
+    private static final int INODE_COMPRESSED = 1;       // The blocks hold the file compressed
+    private static final int INODE_SIZE_OFFSET = 36;
+    private static final int INODE_EXTENT_COUNT_OFFSET = 44;
+    private static final int INODE_EXTENTS_OFFSET = 48;
+    private static final int INODE_INLINE_EXTENTS = 10;
+    private static final int EXTENT_SIZE = 8;
+
+    private final Superblock superblock;
+    private final MetadataJournal journal;
+    private final BlockCache cache;     // null when the cache is turned off
+    private final int cacheableBlocks;  // Larger files bypass the cache so reading them does not flush it
+    private final BufferPool buffers;   // Read buffers, larger reads use a one-off buffer and streams go chunk by chunk
+    private final ExecutorService asyncPool;
+    private final Phaser inFlight = new Phaser(1);     // close() and the asynchronous rewrites still writing
+    private final Compactor compactor;
+    private final DedupIndex dedup;     // null unless the volume was created with deduplication
+    private final boolean compression;  // writeFile() stores files compressed when that makes them smaller
+    private FEntry[] inodeTable; // Array of inodes
+    private FileIndex fileIndex; // Filename -> inode slot
+    private int[] freeSlots;     // Stack of unused inode slots, lowest on top
+    private int freeSlotCount;
+    private FreeBlockBitmap freeBlocks; // Bitmap for free blocks
+    private FreeExtentIndex freeExtents; // The same free blocks as runs, for allocation
+    private FreeExtentIndex freeOverflow; // Unused extent table entries, on deduplicated volumes
+
+    // totalSize is the number of bytes of file data the volume holds, split into 128-byte blocks by default
+    public FileSystemManager(String filename, int totalSize) throws IOException{
+        this(filename, new FileSystemOptions(totalSize));
+    }
 
-    private static final int BLOCK_SIZE = 128; // Example block size
+    public FileSystemManager(String filename, int totalSize, StorageMode mode) throws IOException{
+        this(filename, new FileSystemOptions(totalSize).storageMode(mode));
+    }
 
-    private FEntry[] inodeTable; // Array of inodes
-    private boolean[] freeBlockList; // Bitmap for free blocks
+    public FileSystemManager(String filename, FileSystemOptions options) throws IOException{
+        // Initialize the file system manager with a file.
+        // Every instance has its own backing file, locks, cache and journal, so several volumes can be mounted at once.
 
-    public FileSystemManager(String filename, int totalSize) throws IOException{
-        // Initialize the file system manager with a file
-        if(instance == null) {
-            // Initialize the file system
-           instance = this;
-
-           File newFile = new File(filename);
-           if (!newFile.exists()) {
-                newFile.createNewFile();
-           }
-
-           disk = new RandomAccessFile(newFile, "rw");      // Open file in read-write mode
-           
-           inodeTable = new FEntry[MAXFILES];
-           freeBlockList = new boolean[MAXBLOCKS];
-           Arrays.fill(freeBlockList, true);        // All blocks are free initially
-
-           for (int i = 0; i < MAXFILES; i++) {
-               inodeTable[i] = null;                // No files initially
-           }
+        // An existing volume keeps its own geometry, the options only shape new ones
+        Superblock existing = readSuperblock(filename);
+        if (existing == null && new File(filename).length() > 0) {
+            // Formatting never went as far as the superblock: start over so none of its bytes show through
+            try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+                raf.setLength(0);
+            }
+        }
+        superblock = existing != null ? existing
+                : new Superblock(options.getBlockSize(), options.getBlockCount(), options.getMaxFiles(),
+                        options.isDedup() ? Superblock.FLAG_DEDUP : 0);
+        MAXFILES = superblock.getMaxFiles();
+        MAXBLOCKS = superblock.getBlockCount();
+        BLOCK_SIZE = superblock.getBlockSize();
+
+        disk = options.getStorageMode().open(filename, superblock.getVolumeSize());  // backing store chosen by the caller
+        journal = new MetadataJournal(disk, superblock.getJournalOffset(), superblock.getJournalSize());
+        cache = options.getCacheBlocks() > 0 ? new BlockCache(options.getCacheBlocks(), BLOCK_SIZE) : null;
+        cacheableBlocks = options.getCacheBlocks() / 4;
+        buffers = new BufferPool(READ_BUFFER_SIZE, POOLED_BUFFERS);
+        asyncPool = Executors.newFixedThreadPool(options.getAsyncThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "fs-async");
+            thread.setDaemon(true);                  // does not keep the server process alive
+            return thread;
+        });
+        
+        fileLocks = new ReaderWriterLock[Math.min(MAXFILES, LOCK_STRIPES)];
+        writerLocks = new ReentrantLock[fileLocks.length];
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReaderWriterLock();
+            writerLocks[i] = new ReentrantLock();
+        }
+        inodeTable = new FEntry[MAXFILES];
+        pins = new AtomicReferenceArray<>(MAXFILES);
+        freeBlocks = new FreeBlockBitmap(MAXBLOCKS);     // All blocks are free initially
+        freeExtents = new FreeExtentIndex(MAXBLOCKS);
+        dedup = superblock.isDeduplicated() ? new DedupIndex(MAXBLOCKS) : null;
+        freeOverflow = dedup != null ? new FreeExtentIndex(MAXBLOCKS) : null;
+        compression = options.isCompression();
+
+        for (int i = 0; i < MAXFILES; i++) {
+            inodeTable[i] = null;                // No files initially
+        }
 
+        // Load the metadata of an existing volume, or lay out a new one
+        if (existing != null) {
+            mount();
         } else {
-            throw new IllegalStateException("FileSystemManager is already initialized.");
+            format();
         }
+        buildIndex();
 
+        compactor = new Compactor(this, MAXFILES, options.getCompactionRate());
+        if (options.getCompactionRate() > 0) {
+            compactor.start();          // background passes, throttled to the configured rate
+        }
     }
 
 
     // Create a new file
     public void createFile(String fileName) throws Exception {
-        globalLock.lock();
+        Transaction tx = new Transaction();
+        createLocked(fileName, tx);
+        journal.awaitDurable(tx);       // wait outside the lock so other operations share the flush
+    }
+
+
+    // Read from a file
+    public byte[] readFile(String fileName) throws Exception {
+        return readFile(fileName, 0, Integer.MAX_VALUE);
+    }
+
+
+    // Read up to length bytes starting at offset, fewer when the file ends first
+    public byte[] readFile(String fileName, long offset, int length) throws Exception {
+        try (PooledBuffer contents = readFileBuffer(fileName, offset, length)) {
+            ByteBuffer buffer = contents.buffer();
+            byte[] data = new byte[buffer.remaining()];        // Create byte array to store file data, the size of the range
+            buffer.get(data);
+            return data;
+        }
+    }
+
+
+    // Read from a file into a pooled buffer, which the caller must close once done with it
+    public PooledBuffer readFileBuffer(String fileName) throws Exception {
+        return readFileBuffer(fileName, 0, Integer.MAX_VALUE);
+    }
+
+
+    // Ranged read into a pooled buffer. Only the blocks overlapping the range are read.
+    // Block reads are positional, so any number of readers of a file can be inside its read lock at once
+    public PooledBuffer readFileBuffer(String fileName, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("Invalid range.");
+        }
+        int slot = lockFile(fileName, false);
         try {
-            if (fileName.length() > 11) {
-                throw new Exception("File name is longer than 11 characters.");
+            FEntry entry = inodeTable[slot];
+            long size = entry.getExtents().isEmpty() ? 0 : entry.getFilesize();     // Empty file
+            if (offset > size) {
+                throw new Exception("Offset past end of file.");
+            }
+            int count = (int) Math.min(length, size - offset);
+            ByteBuffer buffer = buffers.acquire(count);
+            try {
+                readRange(entry, offset, buffer, null);
+            } catch (IOException e) {
+                buffers.release(buffer);        // the caller never sees it
+                throw e;
             }
+            buffer.flip();
+            return new PooledBuffer(buffers, buffer);
 
-            for (FEntry entry : inodeTable) {
-                if (entry != null && entry.getFilename().equals(fileName)) {
-                    throw new Exception("File already exists.");
+        } finally {
+            lockFor(slot).endRead(); // releases lock
+        }
+    }
+
+
+    // Read a file as a sequence of block-aligned chunks handed to consumer, all through one pooled buffer,
+    // so memory use does not depend on the size of the file. The file cannot change while it is streamed.
+    public void streamFile(String fileName, ChunkConsumer consumer) throws Exception {
+        streamFile(fileName, 0, Long.MAX_VALUE, consumer);
+    }
+
+
+    // Ranged version of streamFile()
+    public void streamFile(String fileName, long offset, long length, ChunkConsumer consumer) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("Invalid range.");
+        }
+        // The consumer may take its time (a slow client), so the file's lock is only held to pin the
+        // current version: its blocks then stay as they are until the stream is done, see BlockPins
+        FEntry version;
+        BlockPins pinned;
+        int slot = lockFile(fileName, false);
+        try {
+            FEntry entry = inodeTable[slot];
+            version = new FEntry(entry.getFilename(), entry.getFilesize());
+            version.replaceExtents(entry.getExtents());
+            version.setCompressed(entry.isCompressed());
+            pinned = pinsFor(slot);
+            pinned.pin();
+        } finally {
+            lockFor(slot).endRead(); // releases lock
+        }
+        try {
+            long size = version.getExtents().isEmpty() ? 0 : version.getFilesize();     // Empty file
+            if (offset > size) {
+                throw new Exception("Offset past end of file.");
+            }
+            long end = Math.min(size, offset + Math.min(length, size));
+            consumer.start(end - offset);
+            int chunkSize = Math.max(1, buffers.getBufferSize() / BLOCK_SIZE) * BLOCK_SIZE;
+            ByteBuffer buffer = buffers.acquire(chunkSize);
+            try {
+                long position = offset;
+                while (position < end) {
+                    // Chunks after the first one start on a block boundary
+                    long chunkEnd = Math.min(end, (position / chunkSize + 1) * chunkSize);
+                    buffer.clear().limit((int) (chunkEnd - position));
+                    readRange(version, position, buffer, null);
+                    buffer.flip();
+                    consumer.accept(buffer);
+                    position = chunkEnd;
                 }
+            } finally {
+                buffers.release(buffer);
             }
+        } finally {
+            unpin(slot, pinned);
+        }
+    }
+
 
-            int emptySpot = -1;
-            for (int i = 0; i< MAXFILES; i++) {
-                if (inodeTable[i] == null) {
-                    emptySpot = i;
-                    break;
+    // Write to a file
+    // Copy-on-write: the new contents go to freshly allocated blocks while readers keep reading the old ones.
+    // The inode is then switched to the new blocks with one journaled update under the write lock, and the
+    // old blocks are erased and freed once that switch is durable, so a failure leaves one complete version.
+    // A rewrite therefore needs room for both versions while it runs.
+    public void writeFile(String fileName, byte[] data) throws Exception {
+        Transaction tx = new Transaction();
+        FEntry oldVersion = writeLocked(fileName, data, tx);
+        journal.awaitDurable(tx);
+        if (oldVersion != null) {
+            releaseOldVersions(List.of(oldVersion));
+        }
+    }
+
+
+    // Add data at the end of a file.
+    // Only the free part of the last block and newly allocated blocks are written, so the cost
+    // depends on the size of data and not on the size of the file.
+    public void appendFile(String fileName, byte[] data) throws Exception {
+        Transaction tx = new Transaction();
+        FEntry oldVersion = writeAtLocked(fileName, END_OF_FILE, data, tx);
+        journal.awaitDurable(tx);
+        if (oldVersion != null) {
+            releaseOldVersions(List.of(oldVersion));
+        }
+    }
+
+
+    // Overwrite part of a file in place, starting at offset.
+    // Only the blocks overlapping the range are written; the file grows if the range goes past its end,
+    // and a gap between the old end and offset reads as zeros.
+    public void writeAt(String fileName, long offset, byte[] data) throws Exception {
+        if (offset < 0) {
+            throw new Exception("Invalid range.");
+        }
+        Transaction tx = new Transaction();
+        FEntry oldVersion = writeAtLocked(fileName, offset, data, tx);
+        journal.awaitDurable(tx);
+        if (oldVersion != null) {
+            releaseOldVersions(List.of(oldVersion));
+        }
+    }
+
+
+    // Delete a file
+    public void deleteFile(String fileName) throws Exception {
+        Transaction tx = new Transaction();
+        FEntry removed = deleteLocked(fileName, tx);
+        journal.awaitDurable(tx);
+        if (removed != null) {
+            releaseOldVersions(List.of(removed));   // the blocks go once the removal is durable
+        }
+    }
+
+
+    // Apply many operations with one lock acquisition and one journal flush.
+    // The batch holds every writer lock, so no other operation changes a file until it is done;
+    // readers are only kept out of a file while it is switched or changed in place, as for single operations.
+    // Operations run in order and each one succeeds or fails on its own. Their metadata changes are made
+    // durable together, in as few journal records as the journal allows: a record holds whole operations,
+    // so each one stays atomic however large the batch is. Returns one entry per operation: null if it
+    // succeeded, its error message otherwise.
+    public List<String> applyBatch(List<BatchOp> ops) throws Exception {
+        List<String> results = new ArrayList<>();
+        List<FEntry> oldVersions = new ArrayList<>();
+        List<Transaction> committed = new ArrayList<>();
+        Transaction tx = new Transaction();
+        for (ReentrantLock lock : writerLocks) {
+            lock.lock();
+        }
+        try {
+            for (BatchOp op : ops) {
+                Transaction opTx = new Transaction();
+                try {
+                    if (op.getType() == BatchOp.Type.CREATE) {
+                        metadataLock.lock();
+                        try {
+                            create(op.getFileName(), opTx);
+                        } finally {
+                            metadataLock.unlock();
+                        }
+                    } else {
+                        int slot = fileIndex.get(op.getFileName());
+                        if (slot == -1) {
+                            throw new Exception("File not found.");
+                        }
+                        FEntry replaced;        // old blocks to release, null if none or left to a stream
+                        switch (op.getType()) {
+                            case WRITE:
+                                replaced = rewrite(slot, op.getData(), opTx);
+                                break;
+                            case APPEND:
+                                replaced = writeInPlace(slot, END_OF_FILE, op.getData(), opTx);
+                                break;
+                            case DELETE:
+                            default:
+                                replaced = delete(slot, opTx);
+                                break;
+                        }
+                        if (replaced != null) {
+                            oldVersions.add(replaced);
+                        }
+                    }
+                    results.add(null);
+                } catch (Exception e) {
+                    results.add(e.getMessage());
+                } finally {
+                    // A failed operation may have changed metadata too, e.g. given back its new blocks
+                    if (!tx.isEmpty() && tx.committedSize() + opTx.committedSize() > journal.getRecordCapacity()) {
+                        commitLocked(tx);           // full, the rest goes to the next record
+                        committed.add(tx);
+                        tx = new Transaction();
+                    }
+                    tx.addAll(opTx);
                 }
             }
+        } finally {
+            commitLocked(tx);
+            committed.add(tx);
+            for (int i = writerLocks.length - 1; i >= 0; i--) {
+                writerLocks[i].unlock();
+            }
+        }
+        for (Transaction record : committed) {
+            journal.awaitDurable(record);   // all appended already, so they still share one flush
+        }
+        releaseOldVersions(oldVersions);
+        return results;
+    }
+
+
+
+    // Asynchronous versions of the operations above.
+    // Reads hold the file's read lock while their disk reads are in flight and release it, with the
+    // pooled buffer, from the thread that completes the last read, so no thread waits on the disk.
+    // When a writer holds the lock, the read waits for it on the async pool, never on the caller's thread.
+    // Changes take their locks and make their changes on the async pool, then leave: the journal's group
+    // commit completes them once they are durable, so operations waiting for the disk hold no thread.
+    // writeFileAsync() also writes its data with asynchronous I/O, see below; the other changes write theirs
+    // from the pool. The pool has FileSystemOptions.asyncThreads() threads (4 by default), which bounds how
+    // many changes run their locked part, or wait for a file lock, at the same time; the others queue.
+    // The futures may complete on the thread that flushed the journal: chain slow work with the async
+    // methods of CompletableFuture.
+    public CompletableFuture<byte[]> readFileAsync(String fileName) {
+        return readFileAsync(fileName, 0, Integer.MAX_VALUE);
+    }
+
 
-            if (emptySpot == -1) {          // First empty inode table spot
-                throw new Exception("Maximum file limit reached.");
+    public CompletableFuture<byte[]> readFileAsync(String fileName, long offset, int length) {
+        if (offset < 0 || length < 0) {
+            return CompletableFuture.failedFuture(new Exception("Invalid range."));
+        }
+        int slot;
+        try {
+            slot = tryLockFile(fileName);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (slot != -1) {
+            return readLocked(slot, offset, length);
+        }
+        // A writer has the file, wait for it on the pool
+        CompletableFuture<Integer> locked = new CompletableFuture<>();
+        asyncPool.execute(() -> {
+            try {
+                locked.complete(lockFile(fileName, false));
+            } catch (Throwable e) {
+                locked.completeExceptionally(e);
             }
-            inodeTable[emptySpot] = new FEntry(fileName, (short)0, (short)-1);         // Create new file entry
+        });
+        return locked.thenCompose(lockedSlot -> readLocked(lockedSlot, offset, length));
+    }
+
+
+    public CompletableFuture<Void> createFileAsync(String fileName) {
+        return changeAsync(tx -> {
+            createLocked(fileName, tx);
+            return null;
+        });
+    }
+
+
+    // The new contents are written with asynchronous I/O, so writes in flight are not bounded by the pool:
+    // a pool thread only takes the blocks, and later switches the file to them.
+    // On a deduplicated volume each block is looked up before it is written, so the write runs on the pool.
+    public CompletableFuture<Void> writeFileAsync(String fileName, byte[] data) {
+        if (dedup != null) {
+            return changeAsync(tx -> writeLocked(fileName, data, tx));
+        }
+        inFlight.register();
+        return CompletableFuture.supplyAsync(() -> rewriteAsync(fileName, data), asyncPool)
+                .thenCompose(written -> written)
+                .whenComplete((ignored, error) -> inFlight.arriveAndDeregister());
+    }
+
+
+    public CompletableFuture<Void> appendFileAsync(String fileName, byte[] data) {
+        return changeAsync(tx -> writeAtLocked(fileName, END_OF_FILE, data, tx));
+    }
+
+
+    public CompletableFuture<Void> deleteFileAsync(String fileName) {
+        return changeAsync(tx -> deleteLocked(fileName, tx));
+    }
+
+
+
+    // Counters of the metadata journal, e.g. how many operations share one flush
+    public JournalStats getJournalStats() {
+        return journal.getStats();
+    }
+
+
+    // Counters of the block cache, all zero when it is turned off
+    public CacheStats getCacheStats() {
+        if (cache == null) {
+            return new CacheStats(0, 0, 0);
+        }
+        return new CacheStats(cache.getHits(), cache.getMisses(), cache.getEvictions());
+    }
+
+
+    // Run one compaction pass now, on the calling thread: every file in more than one extent is
+    // moved to a single free run when there is one large enough. Throttled like the background passes.
+    public void compact() throws Exception {
+        compactor.runPass();
+    }
+
+
+    public CompactionStats getCompactionStats() {
+        return compactor.getStats();
+    }
+
+
+    // Blocks shared by deduplication, all zero unless the volume was created with it
+    public DedupStats getDedupStats() {
+        if (dedup == null) {
+            return new DedupStats(0, 0, 0);
+        }
+        metadataLock.lock();
+        try {
+            return new DedupStats(dedup.getLogicalBlocks(), dedup.getPhysicalBlocks(), dedup.getSharedWrites());
         } finally {
-            globalLock.unlock();
+            metadataLock.unlock();
         }
     }
 
 
-    // Read from a file
-    public byte[] readFile(String fileName) throws Exception {
-        // globalLock.lock();
-        startRead();
+    // Fragmentation of the free space and of the files.
+    // Extent counts of files being written at the same time may be a little behind.
+    public AllocationStats getAllocationStats() {
+        metadataLock.lock();
         try {
-            FEntry entry = findEntry(fileName);
-            if (entry == null) {
-                throw new Exception("File not found.");
+            long files = 0;
+            long fileExtents = 0;
+            for (FEntry entry : inodeTable) {
+                int extents = entry == null ? 0 : entry.getExtents().size();
+                if (extents > 0) {
+                    files++;
+                    fileExtents += extents;
+                }
             }
-            if (entry.getFirstBlock() == -1 || entry.getFilesize() == 0) {
-                return new byte[0];         // Empty file
+            return new AllocationStats(freeExtents.getFreeCount(), freeExtents.getRunCount(),
+                    freeExtents.getLargestRun(), files, fileExtents);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+
+    // List all files, sorted by name
+    // Taken from the file index without the metadata lock, so creates and deletes do not pay for listings.
+    // The array is the caller's own copy.
+    public String[] listFiles() {
+        return fileIndex.names();
+    }
+
+
+    // Unmount the volume. Every change that returned is already durable, so this only lets the
+    // queued async changes finish, flushes the freeing of replaced blocks and releases the backing file;
+    // the manager must not be used afterwards.
+    @Override
+    public void close() throws IOException {
+        compactor.stop();
+        inFlight.arriveAndAwaitAdvance();       // their last step runs on the pool
+        asyncPool.shutdown();
+        try {
+            asyncPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.flushAll();             // blocks freed since the last flush, see releaseOldVersions()
+        disk.close();
+    }
+
+
+
+// Adding a file to the namespace, called with the metadata lock held
+private void create(String fileName, Transaction tx) throws Exception {
+        if (fileName.length() > 11) {
+            throw new Exception("File name is longer than 11 characters.");
+        }
+
+        if (fileIndex.get(fileName) != -1) {
+            throw new Exception("File already exists.");
+        }
+
+        if (freeSlotCount == 0) {          // No empty inode table spot
+            throw new Exception("Maximum file limit reached.");
+        }
+        int emptySpot = freeSlots[--freeSlotCount];
+        inodeTable[emptySpot] = new FEntry(fileName, 0);         // Create new file entry
+        fileIndex.put(fileName, emptySpot);
+        writeInode(emptySpot, tx);
+}
+
+
+// Copy-on-write rewrite of a file, see writeFile(). Called with the file's writer lock held.
+// Returns the old version, whose blocks must be released once tx is durable; null when a stream still
+// reads it and will release it, see retire().
+private FEntry rewrite(int slot, byte[] data, Transaction tx) throws Exception {
+        byte[] compressed = compression ? compress(data) : null;
+        byte[] stored = compressed != null ? compressed : data;     // what goes into the blocks
+        FEntry newVersion = new FEntry(inodeTable[slot].getFilename(), data.length);
+        newVersion.setCompressed(compressed != null);
+        try {
+            if (dedup != null) {
+                writeDeduplicated(newVersion, stored, tx);
+            } else {
+                allocateVersion(newVersion, stored.length, tx);
+                // Now, we can write the new data, one large write per contiguous run
+                writeRuns(newVersion.getExtents(), stored, 0, stored.length);
             }
-        
-            byte[] data = new byte[entry.getFilesize()];        // Create byte array to store file data, the size of the file
-            disk.seek((long)entry.getFirstBlock() * BLOCK_SIZE);
-            disk.readFully(data, 0, entry.getFilesize());       // Start at index 0 and reads filesize bytes
-           
-            return data;  
+        } catch (Exception e) {
+            discardVersion(newVersion, tx);
+            throw e;
+        }
+        return switchVersion(slot, newVersion, tx);
+}
+
 
+// Taking the blocks for length bytes of a new version, before anything is written to them
+private void allocateVersion(FEntry newVersion, int length, Transaction tx) throws Exception {
+        int numBlocks = (int) ((length + BLOCK_SIZE - 1L) / BLOCK_SIZE);
+        metadataLock.lock();
+        try {
+            if (numBlocks > freeBlocks.getFreeCount()) {
+                throw new Exception("File too large.");
+            }
+            allocateBlocks(newVersion, numBlocks, tx);
         } finally {
-            // globalLock.unlock();
-            endRead(); // releases lock
+            metadataLock.unlock();
         }
-    }
+}
 
 
-    // Write to a file
-    public void writeFile(String fileName, byte[] data) throws Exception {
-        // globalLock.lock();
-        startWrite();
-        try{
-            FEntry entry = findEntry(fileName);
-            if (entry == null) {
+// Nothing was published, give the new blocks back (erased, free blocks always read as zeros)
+private void discardVersion(FEntry newVersion, Transaction tx) throws IOException {
+        eraseFileBlocks(newVersion);
+        metadataLock.lock();
+        try {
+            freeFileBlocks(newVersion, tx);
+        } finally {
+            metadataLock.unlock();
+        }
+}
+
+
+// Switching a file to the blocks of its new version, called with its writer lock held. Returns as rewrite().
+private FEntry switchVersion(int slot, FEntry newVersion, Transaction tx) throws InterruptedException {
+        FEntry entry = inodeTable[slot];
+        FEntry oldVersion = new FEntry(entry.getFilename(), entry.getFilesize());
+        lockFor(slot).startWrite();     // readers still on the old version finish first
+        try {
+            oldVersion.replaceExtents(entry.getExtents());
+            oldVersion.setOverflowStart(entry.getOverflowStart());
+            entry.replaceExtents(newVersion.getExtents());
+            entry.setOverflowStart(newVersion.getOverflowStart());
+            entry.setCompressed(newVersion.isCompressed());
+            entry.setFilesize(newVersion.getFilesize());    // store file size
+            writeInode(slot, tx);                   // persist the inode now that it points to the new blocks
+            return retire(slot, oldVersion, tx);
+        } finally {
+            lockFor(slot).endWrite(); // release lock
+        }
+}
+
+
+// Asynchronous rewrite, see writeFileAsync(): the new blocks are taken, then written with asynchronous I/O
+// and no lock held, as nothing points to them yet. Only switching the file to them takes its writer lock.
+private CompletableFuture<Void> rewriteAsync(String fileName, byte[] data) {
+        Transaction tx = new Transaction();
+        FEntry newVersion = new FEntry(fileName, data.length);
+        byte[] stored;
+        try {
+            if (fileIndex.get(fileName) == -1) {
                 throw new Exception("File not found.");
             }
+            byte[] compressed = compression ? compress(data) : null;
+            stored = compressed != null ? compressed : data;
+            newVersion.setCompressed(compressed != null);
+            allocateVersion(newVersion, stored.length, tx);
+        } catch (Exception e) {
+            return abandonVersion(newVersion, tx, e);
+        }
+        return writeRunsAsync(newVersion.getExtents(), stored).handleAsync((ignored, error) -> {
+            if (error != null) {
+                return abandonVersion(newVersion, tx, error instanceof CompletionException ? error.getCause() : error);
+            }
+            int slot;
+            try {
+                slot = lockFile(fileName, true);        // deleted meanwhile: "File not found."
+            } catch (Exception e) {
+                return abandonVersion(newVersion, tx, e);
+            }
+            FEntry oldVersion;
+            try {
+                oldVersion = switchVersion(slot, newVersion, tx);
+            } catch (InterruptedException e) {
+                return CompletableFuture.<Void>failedFuture(e);
+            } finally {
+                commitLocked(tx);
+                writerLockFor(slot).unlock();
+            }
+            return afterChange(tx, oldVersion);
+        }, asyncPool).thenCompose(change -> change);
+}
 
-            int size = data.length;
-            int numBlocks = (int) Math.ceil((double) size / BLOCK_SIZE);
 
-            int freeBlocks = countFreeBlocks();
-            if (numBlocks > freeBlocks) {
-                throw new Exception("File too large.");
+// Failing an asynchronous rewrite whose new version was not published
+private CompletableFuture<Void> abandonVersion(FEntry newVersion, Transaction tx, Throwable error) {
+        try {
+            discardVersion(newVersion, tx);
+        } catch (IOException e) {
+            error.addSuppressed(e);
+        }
+        commitLocked(tx);
+        return CompletableFuture.failedFuture(error);
+}
+
+
+// Moving a fragmented file into one contiguous run, copy then swap: the blocks are copied with no lock
+// held, then the inode is switched to the copy under the write lock, the same way writeFile() switches
+// versions, so readers only ever wait for that one metadata swap. Writers are not held up either: if the
+// file changed while it was copied (its version moved on) the copy is thrown away and the file is left
+// for the next pass. Returns the number of blocks moved, 0 when the file was left as it is.
+int compactFile(int slot, Compactor compactor) throws Exception {
+        if (dedup != null) {
+            return 0;                   // blocks may be shared by several files, they stay where they are
+        }
+        FEntry current;
+        FEntry oldVersion;
+        long version;
+        lockFor(slot).startRead();
+        try {
+            current = inodeTable[slot];
+            if (current == null || current.getExtents().size() <= 1) {
+                return 0;
             }
+            version = current.getVersion();
+            oldVersion = new FEntry(current.getFilename(), current.getFilesize());
+            oldVersion.replaceExtents(current.getExtents());
+        } finally {
+            lockFor(slot).endRead();
+        }
 
-            // Free existing blocks
-            freeFileBlocks(entry);
+        int blocks = oldVersion.getBlockCount();
+        FEntry copy = new FEntry(oldVersion.getFilename(), oldVersion.getFilesize());
+        Transaction tx = new Transaction();
+        metadataLock.lock();
+        try {
+            Extent run = freeExtents.bestFit(blocks);
+            if (run == null) {
+                return 0;               // no room for it in one piece
+            }
+            markBlocks(run.getStart(), blocks, false, tx);
+            copy.addBlocks(run.getStart(), blocks);
+        } finally {
+            metadataLock.unlock();
+        }
 
-            // Now, we can write the new data
-            int bytesWritten = 0;
-            short firstBlockIndex = -1;
+        boolean swapped = false;
+        FEntry released = null;         // stays null when a stream still reads the old blocks
+        try {
+            copyBlocks(oldVersion, copy.getExtents().get(0).getStart(), compactor);
+            writerLockFor(slot).lock();
+            try {
+                if (inodeTable[slot] == current && current.getVersion() == version) {
+                    lockFor(slot).startWrite();
+                    try {
+                        current.replaceExtents(copy.getExtents());
+                        writeInode(slot, tx);
+                        swapped = true;
+                        released = retire(slot, oldVersion, tx);
+                    } finally {
+                        lockFor(slot).endWrite();
+                    }
+                    commitLocked(tx);
+                }
+            } finally {
+                writerLockFor(slot).unlock();
+            }
+        } finally {
+            if (!swapped) {
+                // Give the copy back (erased, free blocks always read as zeros)
+                eraseFileBlocks(copy);
+                metadataLock.lock();
+                try {
+                    freeFileBlocks(copy, tx);
+                    commit(tx);
+                } finally {
+                    metadataLock.unlock();
+                }
+            }
+        }
+        journal.awaitDurable(tx);
+        if (!swapped) {
+            return 0;
+        }
+        if (released != null) {
+            releaseOldVersions(List.of(released));
+        }
+        return blocks;
+}
 
-            for (int i = 0; i < numBlocks; i++) {
-                int blockIndex = findFreeBlock();
-                if (blockIndex == -1) {
-                    throw new Exception("No free blocks available.");
+
+// Copying the blocks of a file, in order, to the contiguous run starting at target
+private void copyBlocks(FEntry entry, int target, Compactor compactor) throws Exception {
+        ByteBuffer buffer = buffers.acquire(buffers.getBufferSize());
+        try {
+            long to = blockPosition(target);
+            for (Extent extent : entry.getExtents()) {
+                long from = blockPosition(extent.getStart());
+                long length = (long) extent.getLength() * BLOCK_SIZE;
+                for (long done = 0; done < length; ) {
+                    int chunk = (int) Math.min(buffer.capacity(), length - done);
+                    compactor.throttle(chunk);
+                    buffer.clear().limit(chunk);
+                    disk.read(from + done, buffer);
+                    buffer.flip();
+                    disk.write(to, buffer);
+                    to += chunk;
+                    done += chunk;
                 }
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+}
 
-                freeBlockList[blockIndex] = false; // Mark block as used
 
-                // Moving the file pointer to the start of the block
-                disk.seek((long) blockIndex * BLOCK_SIZE);
+// Erasing and freeing the blocks of replaced versions and deleted files, once no inode points to them
+// in memory or on disk. The freeing is committed but not waited for: it goes out with the next flush,
+// before any change that reuses the blocks, and blocks whose freeing a crash lost are found at mount
+// (see reclaimLeakedBlocks()).
+private void releaseOldVersions(List<FEntry> oldVersions) throws IOException {
+        Transaction tx = new Transaction();
+        for (FEntry oldVersion : oldVersions) {
+            eraseFileBlocks(oldVersion);
+        }
+        metadataLock.lock();
+        try {
+            for (FEntry oldVersion : oldVersions) {
+                freeFileBlocks(oldVersion, tx);
+            }
+            commit(tx);
+        } finally {
+            metadataLock.unlock();
+        }
+}
 
-                // Write data to the block
-                disk.write(data, bytesWritten, Math.min(BLOCK_SIZE, size - bytesWritten));
 
-                if (i == 0) {
-                    firstBlockIndex = (short) blockIndex; // Store the index of the first block
+// Writing into a file's existing blocks from offset on (END_OF_FILE appends), called with its writer lock held.
+// On a deduplicated volume blocks may be shared and are never changed in place: the file is rewritten with
+// the change applied, which only writes the blocks that differ. A compressed file is rewritten the same way,
+// its bytes are not at their own offsets, and so is a file being streamed, whose blocks must stay as they are.
+// The old version is then returned as by rewrite(); null when the blocks were written in place.
+private FEntry writeInPlace(int slot, long offset, byte[] data, Transaction tx) throws Exception {
+        if (dedup == null && !inodeTable[slot].isCompressed()) {
+            lockFor(slot).startWrite();     // blocks are changed in place, readers wait
+            try {
+                if (!isPinned(slot)) {
+                    FEntry entry = inodeTable[slot];
+                    writeRange(entry, offset == END_OF_FILE ? entry.getFilesize() : offset, data, tx);
+                    writeInode(slot, tx);
+                    return null;
                 }
-                bytesWritten += Math.min(BLOCK_SIZE, size - bytesWritten);
-            }
-            if (firstBlockIndex != -1) {
-                entry.setFirstBlock(firstBlockIndex);   // update inode to point to first block
-                entry.setFilesize((short) size);        // store file size (watch max size vs short limit)
-                // Optionally persist inode table or metadata to disk here
+            } finally {
+                lockFor(slot).endWrite();
             }
+        }
+        FEntry entry = inodeTable[slot];
+        long start = offset == END_OF_FILE ? entry.getFilesize() : offset;
+        long size = Math.max(entry.getFilesize(), start + data.length);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new Exception("File too large.");     // the whole file goes through one array
+        }
+        byte[] contents = new byte[(int) size];
+        readRange(entry, 0, ByteBuffer.wrap(contents, 0, (int) entry.getFilesize()), null);
+        System.arraycopy(data, 0, contents, (int) start, data.length);
+        return rewrite(slot, contents, tx);
+}
 
 
+// Removing a file, called with its writer lock held. The slot is reused once tx is committed.
+// Returns the removed file, whose blocks must be released once tx is durable, like an old version:
+// erasing them before then would bring the file back with zeroed contents after a crash. Null when a
+// stream still reads them and will release them, see retire().
+private FEntry delete(int slot, Transaction tx) throws Exception {
+        lockFor(slot).startWrite();     // no reader may still be on the file once it is gone
+        try {
+            FEntry entry = inodeTable[slot];
+            FEntry removed = new FEntry(entry.getFilename(), entry.getFilesize());
+            removed.replaceExtents(entry.getExtents());
+            removed.setOverflowStart(entry.getOverflowStart());
+            metadataLock.lock();
+            try {
+                inodeTable[slot] = null;        // Remove file entry
+                fileIndex.remove(entry.getFilename());
+                tx.freeSlot(slot);
+                writeInode(slot, tx);
+            } finally {
+                metadataLock.unlock();
+            }
+            return retire(slot, removed, tx);
         } finally {
-            // globalLock.unlock();
-            endWrite(); // release lock
+            lockFor(slot).endWrite();
         }
-        
-    }
+}
 
 
-    // Delete a file
-    public void deleteFile(String fileName) throws Exception {
-        globalLock.lock();
-        try{
-            FEntry entry = findEntry(fileName);
-            if (entry == null) {
+// Finding the inode table slot of a file and taking its lock: the read lock for readers, the writer
+// lock for operations that change the file (they take the read/write lock's write side themselves,
+// only for as long as readers must be kept out).
+// The file may be deleted or replaced between the lookup and the lock, so the slot is checked again
+// once the lock is held. Throws if there is no such file; otherwise the caller must release the lock.
+private int lockFile(String fileName, boolean write) throws Exception {
+        while (true) {
+            int slot = fileIndex.get(fileName);
+            if (slot == -1) {
+                throw new Exception("File not found.");
+            }
+            if (write) {
+                writerLockFor(slot).lock();
+            } else {
+                lockFor(slot).startRead();
+            }
+            FEntry entry = inodeTable[slot];
+            if (entry != null && entry.getFilename().equals(fileName)) {
+                return slot;
+            }
+            if (write) {                // lost a race with delete, look the name up again
+                writerLockFor(slot).unlock();
+            } else {
+                lockFor(slot).endRead();
+            }
+        }
+}
+
+
+// Like lockFile() for a reader, but returns -1 instead of waiting when a writer has the file
+private int tryLockFile(String fileName) throws Exception {
+        while (true) {
+            int slot = fileIndex.get(fileName);
+            if (slot == -1) {
                 throw new Exception("File not found.");
             }
+            if (!lockFor(slot).tryStartRead()) {
+                return -1;
+            }
+            FEntry entry = inodeTable[slot];
+            if (entry != null && entry.getFilename().equals(fileName)) {
+                return slot;
+            }
+            lockFor(slot).endRead();
+        }
+}
+
+
+// The locked part of the changes, shared by the blocking and asynchronous versions. Each one commits
+// its transaction before releasing its locks and returns the version to release once tx is durable.
+private void createLocked(String fileName, Transaction tx) throws Exception {
+        metadataLock.lock();
+        try {
+            create(fileName, tx);
+        } finally {
+            commit(tx);
+            metadataLock.unlock();
+        }
+}
+
+
+private FEntry writeLocked(String fileName, byte[] data, Transaction tx) throws Exception {
+        int slot = lockFile(fileName, true);
+        try {
+            return rewrite(slot, data, tx);
+        } finally {
+            commitLocked(tx);
+            writerLockFor(slot).unlock();
+        }
+}
+
+
+private FEntry writeAtLocked(String fileName, long offset, byte[] data, Transaction tx) throws Exception {
+        int slot = lockFile(fileName, true);
+        try {
+            return writeInPlace(slot, offset, data, tx);
+        } finally {
+            commitLocked(tx);
+            writerLockFor(slot).unlock();
+        }
+}
+
+
+private FEntry deleteLocked(String fileName, Transaction tx) throws Exception {
+        int slot = lockFile(fileName, true);
+        try {
+            return delete(slot, tx);
+        } finally {
+            commitLocked(tx);
+            writerLockFor(slot).unlock();
+        }
+}
 
-            // Free allocation of blocks
-            freeFileBlocks(entry);
 
-            for (int i = 0; i < MAXFILES; i++) {
-                if (inodeTable[i] == entry){
-                    inodeTable[i] = null;        // Remove file entry
-                    break;
+// Reading a range of a file whose read lock the caller holds, see readFileAsync(). The lock is released,
+// with the pooled buffer, once the disk reads are done.
+private CompletableFuture<byte[]> readLocked(int slot, long offset, int length) {
+        ByteBuffer buffer = null;
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try {
+            FEntry entry = inodeTable[slot];
+            long size = entry.getExtents().isEmpty() ? 0 : entry.getFilesize();     // Empty file
+            if (offset > size) {
+                throw new Exception("Offset past end of file.");
+            }
+            buffer = buffers.acquire((int) Math.min(length, size - offset));
+            readRange(entry, offset, buffer, pending);
+        } catch (Exception e) {
+            // Reads already started still write into the buffer, it is released once they are done
+            ByteBuffer started = buffer;
+            return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+                if (started != null) {
+                    buffers.release(started);
                 }
+                endReadQuietly(slot);
+                return null;
+            }).thenCompose(ignored -> CompletableFuture.failedFuture(e));
+        }
+
+        ByteBuffer contents = buffer;
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            try {
+                if (error != null) {
+                    throw new CompletionException(error);
+                }
+                contents.flip();
+                byte[] data = new byte[contents.remaining()];
+                contents.get(data);
+                return data;
+            } finally {
+                buffers.release(contents);
+                endReadQuietly(slot);   // semaphores may be released by another thread than the one that acquired
+            }
+        });
+}
+
+
+// Releasing a read lock from a completion thread, where nothing can be thrown to a caller
+private void endReadQuietly(int slot) {
+        try {
+            lockFor(slot).endRead();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+}
+
+
+// Running the locked part of a change on the async pool. The returned future completes once the change
+// is durable and its old version released, from the journal flushes rather than a waiting thread.
+private CompletableFuture<Void> changeAsync(FileChange change) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        asyncPool.execute(() -> {
+            Transaction tx = new Transaction();
+            FEntry oldVersion;
+            try {
+                oldVersion = change.apply(tx);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+                return;
             }
+            afterChange(tx, oldVersion).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    done.completeExceptionally(error);
+                } else {
+                    done.complete(null);
+                }
+            });
+        });
+        return done;
+}
+
+
+// Completing an asynchronous change once its committed transaction is durable, from the journal flush,
+// then releasing its old version if any
+private CompletableFuture<Void> afterChange(Transaction tx, FEntry oldVersion) {
+        CompletableFuture<Void> durable = journal.whenDurable(tx, asyncPool);
+        if (oldVersion != null) {
+            durable = durable.thenApply(ignored -> {
+                try {
+                    releaseOldVersions(List.of(oldVersion));
+                    return null;
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+        return durable;
+}
+
+
+// Lock stripe of an inode slot
+// Pins of the current version of a slot, created by the first stream. Called with the slot's read lock held.
+private BlockPins pinsFor(int slot) {
+        BlockPins current = pins.get(slot);
+        if (current == null) {
+            pins.compareAndSet(slot, null, new BlockPins());   // another reader may have been first
+            current = pins.get(slot);
+        }
+        return current;
+}
+
+
+// Whether a stream reads the current blocks of a slot, called with its write lock held
+private boolean isPinned(int slot) {
+        BlockPins current = pins.get(slot);
+        return current != null && current.isPinned();
+}
+
+
+// Called with the slot's write lock held once it no longer points to version's blocks (rewrite, compaction
+// or delete). Returns version when the caller must release it as usual; null when streams still read it,
+// the last of them releases it then (see unpin()) and the slot's next streams get new pins.
+private FEntry retire(int slot, FEntry version, Transaction tx) {
+        BlockPins current = pins.get(slot);
+        if (current == null || !current.retire(version, tx)) {
+            return version;
+        }
+        pins.set(slot, null);
+        return null;
+}
+
+
+// Ending a stream, releasing the version it read if it was the last one on a replaced version
+private void unpin(int slot, BlockPins pinned) throws IOException {
+        if (pinned.unpin()) {
+            // The change that retired it is committed before the slot's writer lock is released,
+            // waiting for the lock makes sure it is before waiting for it to be durable
+            writerLockFor(slot).lock();
+            writerLockFor(slot).unlock();
+            journal.awaitDurable(pinned.getTransaction());
+            releaseOldVersions(List.of(pinned.getRetired()));
+        }
+}
+
+
+private ReaderWriterLock lockFor(int slot) {
+        return fileLocks[slot % fileLocks.length];
+}
+
+
+// Lock serializing the operations that change files of a stripe
+private ReentrantLock writerLockFor(int slot) {
+        return writerLocks[slot % writerLocks.length];
+}
+
+
+// Taking count free blocks for a file and attaching them at its end, metadata lock held.
+// The blocks right after the file's last extent are used first so the extent just grows.
+// The rest goes to the smallest free run that holds all of it (best fit), so the file stays contiguous
+// and large runs are left for large files; only when no run is that large is it split over the
+// largest runs. Returns the runs taken, in file order.
+private List<Extent> allocateBlocks(FEntry entry, int count, Transaction tx) throws Exception {
+        List<Extent> runs = new ArrayList<>();
+        List<Extent> extents = entry.getExtents();
+        if (count > 0 && !extents.isEmpty()) {
+            // the block before is the file's, so a free run there starts right at the end of the file
+            Extent next = freeExtents.runStartingAt(extents.get(extents.size() - 1).getEnd());
+            if (next != null) {
+                int length = Math.min(next.getLength(), count);
+                runs.add(new Extent(next.getStart(), length));
+                markBlocks(next.getStart(), length, false, tx);
+                count -= length;
+            }
+        }
+        while (count > 0) {
+            Extent run = freeExtents.bestFit(count);
+            if (run == null) {
+                run = freeExtents.largest();
+            }
+            if (run == null) {
+                break;
+            }
+            int length = Math.min(run.getLength(), count);
+            runs.add(new Extent(run.getStart(), length));
+            markBlocks(run.getStart(), length, false, tx);      // Mark blocks as used
+            count -= length;
+        }
+        for (Extent run : runs) {
+            entry.addBlocks(run.getStart(), run.getLength());     // attach the run at the end of the file
+        }
+        if (count > 0) {
+            throw new Exception("No free blocks available.");
+        }
+        return runs;
+}
+
+
+// Reading buffer.remaining() bytes of a file from offset on.
+// With a pending list the disk reads are only started, one future per read is added to the list;
+// a compressed file is read and inflated right away instead.
+private void readRange(FEntry entry, long offset, ByteBuffer buffer,
+                       List<CompletableFuture<Void>> pending) throws IOException {
+        if (entry.isCompressed()) {
+            readCompressed(entry, offset, buffer);
+        } else {
+            readBlocks(entry, offset, buffer, entry.getFilesize(), pending);
+        }
+}
+
+
+// Reading buffer.remaining() bytes of what the blocks of a file hold from offset on, one read per overlapping
+// extent. The first extent is found by a binary search over the file's extents, the rest follow it.
+// The cache is used for pieces that start on a block boundary; a piece is only added to it when it
+// also ends on a block boundary or at dataEnd, the end of what was written, since the cache fills the
+// rest with zeros (-1 when unknown).
+private void readBlocks(FEntry entry, long offset, ByteBuffer buffer, long dataEnd,
+                        List<CompletableFuture<Void>> pending) throws IOException {
+        boolean cached = cache != null && entry.getBlockCount() <= cacheableBlocks;
+        long end = offset + buffer.remaining();
+        int limit = buffer.limit();
+        List<Extent> extents = entry.getExtents();
+        for (int k = entry.findExtent(offset / BLOCK_SIZE); k < extents.size(); k++) {
+            Extent extent = extents.get(k);
+            long extentOffset = (long) entry.getExtentFirstBlock(k) * BLOCK_SIZE;   // file offset of its first byte
+            long extentEnd = extentOffset + (long) extent.getLength() * BLOCK_SIZE;
+            long from = Math.max(offset, extentOffset);
+            long to = Math.min(end, extentEnd);
+            if (from >= to) {
+                break;
+            }
+            int pieceLength = (int) (to - from);
+            int firstBlock = extent.getStart() + (int) ((from - extentOffset) / BLOCK_SIZE);
+            boolean aligned = cached && (from - extentOffset) % BLOCK_SIZE == 0;
+            int at = buffer.position();
+            buffer.limit(at + pieceLength);
+            if (!aligned || !cache.read(firstBlock, buffer)) {
+                long position = blockPosition(extent.getStart()) + (from - extentOffset);
+                boolean cacheable = aligned && ((to - extentOffset) % BLOCK_SIZE == 0 || to == dataEnd);
+                if (pending == null) {
+                    disk.read(position, buffer);
+                    if (cacheable) {
+                        cache.put(firstBlock, buffer, at, pieceLength);
+                    }
+                } else {
+                    ByteBuffer piece = buffer.slice(at, pieceLength);   // own position, filled by the read
+                    buffer.position(at + pieceLength);
+                    pending.add(disk.readAsync(position, piece).thenRun(() -> {
+                        if (cacheable) {
+                            cache.put(firstBlock, piece, 0, piece.capacity());
+                        }
+                    }));
+                }
+            }
+            buffer.limit(limit);
+        }
+}
+
+
+// Reading part of a compressed file, see compress(). Only the chunks overlapping the range are read and
+// inflated, so a ranged read costs at most two chunks more than the range itself.
+private void readCompressed(FEntry entry, long offset, ByteBuffer buffer) throws IOException {
+        long end = offset + buffer.remaining();
+        if (offset >= end) {
+            return;
+        }
+        int chunks = (int) ((entry.getFilesize() + COMPRESSION_CHUNK - 1) / COMPRESSION_CHUNK);
+        int first = (int) (offset / COMPRESSION_CHUNK);
+        int last = (int) ((end - 1) / COMPRESSION_CHUNK);
+
+        // End offsets of the chunks, starting with the one before first (chunk 0 starts after the table)
+        int tableFrom = Math.max(first - 1, 0);
+        ByteBuffer table = ByteBuffer.allocate((last - tableFrom + 1) * 8);
+        readBlocks(entry, tableFrom * 8L, table, -1, null);
+        table.flip();
+        long chunkStart = first == 0 ? chunks * 8L : table.getLong();
+
+        byte[] packed = new byte[COMPRESSION_CHUNK];
+        byte[] chunk = new byte[COMPRESSION_CHUNK];
+        Inflater inflater = new Inflater();
+        try {
+            for (int i = first; i <= last; i++) {
+                long chunkEnd = table.getLong();
+                long chunkOffset = (long) i * COMPRESSION_CHUNK;    // file offset of its first byte
+                int length = (int) Math.min(COMPRESSION_CHUNK, entry.getFilesize() - chunkOffset);
+                int storedLength = (int) (chunkEnd - chunkStart);
+                readBlocks(entry, chunkStart, ByteBuffer.wrap(packed, 0, storedLength), -1, null);
+                byte[] contents = packed;
+                if (storedLength < length) {
+                    inflater.reset();
+                    inflater.setInput(packed, 0, storedLength);
+                    for (int n = 0; n < length; ) {
+                        int inflated = inflater.inflate(chunk, n, length - n);
+                        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new IOException("Compressed chunk is truncated.");
+                        }
+                        n += inflated;
+                    }
+                    contents = chunk;
+                }       // else the chunk did not shrink and was stored as it is
+                int from = (int) (Math.max(offset, chunkOffset) - chunkOffset);
+                int to = (int) (Math.min(end, chunkOffset + length) - chunkOffset);
+                buffer.put(contents, from, to - from);
+                chunkStart = chunkEnd;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed chunk is corrupt.", e);
         } finally {
-            globalLock.unlock();
+            inflater.end();
         }
-    }
+}
+
 
+// What writeFile() stores for a file on a volume with compression: the file is cut into chunks of
+// COMPRESSION_CHUNK bytes, each deflated on its own, after a table holding where each chunk ends (8 bytes
+// per chunk, offsets from the start of the table). A chunk that does not shrink is stored as it is, which
+// is how a reader tells: its stored length is its length. Returns null when the whole does not shrink,
+// the file is then stored raw.
+private static byte[] compress(byte[] data) {
+        int chunks = (int) ((data.length + COMPRESSION_CHUNK - 1L) / COMPRESSION_CHUNK);
+        long tableSize = chunks * 8L;
+        if (tableSize >= data.length) {
+            return null;
+        }
+        byte[] stored = new byte[data.length];          // never needs more, it would not be worth it
+        ByteBuffer table = ByteBuffer.wrap(stored);
+        int storedLength = (int) tableSize;
+        Deflater deflater = new Deflater();
+        try {
+            for (int i = 0; i < chunks; i++) {
+                int offset = i * COMPRESSION_CHUNK;
+                int length = Math.min(COMPRESSION_CHUNK, data.length - offset);
+                int room = Math.min(length - 1, stored.length - storedLength);  // a stored chunk must be shorter
+                deflater.reset();
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                int packed = 0;
+                while (!deflater.finished() && packed < room) {
+                    packed += deflater.deflate(stored, storedLength + packed, room - packed);
+                }
+                if (!deflater.finished()) {
+                    // Did not shrink, keep it as it is if there is still room for that
+                    if (length > stored.length - storedLength) {
+                        return null;
+                    }
+                    System.arraycopy(data, offset, stored, storedLength, length);
+                    packed = length;
+                }
+                storedLength += packed;
+                table.putLong(i * 8, storedLength);
+            }
+        } finally {
+            deflater.end();
+        }
+        return storedLength < data.length ? Arrays.copyOf(stored, storedLength) : null;
+}
 
 
-    // List all files
-    public String[] listFiles() {
-        globalLock.lock();
+// Writing data into a file from offset on, allocating the blocks it grows into.
+// Existing blocks are written in place; their cached copies are dropped rather than patched.
+// Called with the file's write lock held, the caller writes the inode.
+private void writeRange(FEntry entry, long offset, byte[] data, Transaction tx) throws Exception {
+        long end = offset + data.length;
+        long size = Math.max(entry.getFilesize(), end);
+        long numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE - entry.getBlockCount();
+        if (numBlocks > 0) {
+            metadataLock.lock();
+            try {
+                if (numBlocks > freeBlocks.getFreeCount()) {
+                    throw new Exception("File too large.");
+                }
+                allocateBlocks(entry, (int) numBlocks, tx);
+            } finally {
+                metadataLock.unlock();
+            }
+        }
+
+        List<Extent> extents = entry.getExtents();
+        for (int k = entry.findExtent(offset / BLOCK_SIZE); k < extents.size(); k++) {
+            Extent extent = extents.get(k);
+            long extentOffset = (long) entry.getExtentFirstBlock(k) * BLOCK_SIZE;   // file offset of its first byte
+            long extentEnd = extentOffset + (long) extent.getLength() * BLOCK_SIZE;
+            long from = Math.max(offset, extentOffset);
+            long to = Math.min(end, extentEnd);
+            if (from < to) {
+                disk.write(blockPosition(extent.getStart()) + (from - extentOffset), data,
+                        (int) (from - offset), (int) (to - from));
+                if (cache != null) {
+                    int firstBlock = (int) ((from - extentOffset) / BLOCK_SIZE);
+                    int lastBlock = (int) ((to - 1 - extentOffset) / BLOCK_SIZE);
+                    cache.invalidate(extent.getStart() + firstBlock, lastBlock - firstBlock + 1);
+                }
+            }
+            if (extentEnd >= end) {
+                break;
+            }
+        }
+        entry.setFilesize(size);
+}
+
+
+// Writing length bytes of data from offset on into freshly allocated runs, one write per run
+private void writeRuns(List<Extent> runs, byte[] data, int offset, int length) throws IOException {
+        int bytesWritten = 0;
+        for (Extent run : runs) {
+            int chunk = (int) Math.min((long) run.getLength() * BLOCK_SIZE, length - bytesWritten);
+            disk.write(blockPosition(run.getStart()), data, offset + bytesWritten, chunk);
+            if (cache != null) {
+                cache.update(run.getStart(), data, offset + bytesWritten, chunk);     // write-through
+            }
+            bytesWritten += chunk;
+        }
+}
+
+
+// Asynchronous counterpart of writeRuns() for the whole of data, every run's write in flight at once
+private CompletableFuture<Void> writeRunsAsync(List<Extent> runs, byte[] data) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        int bytesWritten = 0;
+        for (Extent run : runs) {
+            int offset = bytesWritten;
+            int chunk = (int) Math.min((long) run.getLength() * BLOCK_SIZE, data.length - offset);
+            writes.add(disk.writeAsync(blockPosition(run.getStart()), ByteBuffer.wrap(data, offset, chunk)).thenRun(() -> {
+                if (cache != null) {
+                    cache.update(run.getStart(), data, offset, chunk);     // write-through
+                }
+            }));
+            bytesWritten += chunk;
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+}
+
+
+// Deduplicated counterpart of allocating and writing the blocks of a new version, see DedupIndex.
+// Each block of data whose contents are already on the volume (or earlier in data) points to that block
+// instead of being written. Only the other blocks are allocated, written whole, and given a fingerprint,
+// which is stored next to them and indexed once they are written.
+private void writeDeduplicated(FEntry newVersion, byte[] data, Transaction tx) throws Exception {
+        int numBlocks = (int) ((data.length + BLOCK_SIZE - 1L) / BLOCK_SIZE);
+        ByteBuffer[] fingerprints = new ByteBuffer[numBlocks];
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[] padding = new byte[BLOCK_SIZE];
+        for (int i = 0; i < numBlocks; i++) {
+            int length = Math.min(BLOCK_SIZE, data.length - i * BLOCK_SIZE);
+            sha.update(data, i * BLOCK_SIZE, length);
+            sha.update(padding, 0, BLOCK_SIZE - length);    // the end of the last block holds zeros
+            fingerprints[i] = ByteBuffer.wrap(sha.digest());
+        }
+
+        int[] blocks = new int[numBlocks];
+        List<Integer> fresh = new ArrayList<>();            // blocks of data that need a block of their own
+        metadataLock.lock();
         try {
-            List<String> fileList = new ArrayList<>();
-            for (FEntry entry : inodeTable) {
-                if (entry != null) {
-                    fileList.add(entry.getFilename());
+            Map<ByteBuffer, Integer> firstCopy = new HashMap<>();
+            for (int i = 0; i < numBlocks; i++) {
+                blocks[i] = dedup.find(fingerprints[i]);
+                if (blocks[i] < 0 && firstCopy.putIfAbsent(fingerprints[i], i) == null) {
+                    fresh.add(i);
+                }
+            }
+            if (fresh.size() > freeExtents.getFreeCount()) {
+                throw new Exception("File too large.");
+            }
+            FEntry allocated = new FEntry(newVersion.getFilename(), 0);
+            allocateBlocks(allocated, fresh.size(), tx);
+            boolean[] written = new boolean[numBlocks];
+            int next = 0;
+            for (Extent run : allocated.getExtents()) {
+                for (int block = run.getStart(); block < run.getEnd(); block++) {
+                    written[fresh.get(next)] = true;
+                    blocks[fresh.get(next++)] = block;
+                }
+            }
+            for (int i = 0; i < numBlocks; i++) {
+                if (blocks[i] < 0) {
+                    blocks[i] = blocks[firstCopy.get(fingerprints[i])];     // repeats an earlier block of data
+                }
+                if (!written[i]) {
+                    dedup.countSharedWrite();
                 }
+                dedup.reference(blocks[i]);
+                newVersion.addBlocks(blocks[i], 1);         // merges with the previous block when they follow
+            }
+            // Extents past the inode get entries of their own: shared blocks cannot key the extent links
+            int overflow = newVersion.getExtents().size() - inlineExtents();
+            if (overflow > 0) {
+                Extent entries = freeOverflow.bestFit(overflow);
+                if (entries == null) {
+                    throw new Exception("File too large.");
+                }
+                freeOverflow.allocate(entries.getStart(), overflow);
+                newVersion.setOverflowStart(entries.getStart());
             }
-            return fileList.toArray(new String[0]);     // Convert List to Array and return
         } finally {
-            globalLock.unlock();
+            metadataLock.unlock();
         }
-    }
 
+        // One write per group of fresh blocks that follow each other both in data and on disk
+        for (int k = 0; k < fresh.size(); ) {
+            int first = fresh.get(k);
+            int count = 1;
+            while (k + count < fresh.size() && fresh.get(k + count) == first + count
+                    && blocks[first + count] == blocks[first] + count) {
+                count++;
+            }
+            int offset = first * BLOCK_SIZE;
+            int length = Math.min(count * BLOCK_SIZE, data.length - offset);
+            disk.write(blockPosition(blocks[first]), data, offset, length);
+            if (length < count * BLOCK_SIZE) {
+                disk.write(blockPosition(blocks[first]) + length, padding, 0, count * BLOCK_SIZE - length);
+            }
+            if (cache != null) {
+                cache.update(blocks[first], data, offset, length);     // write-through
+            }
+            ByteBuffer stored = ByteBuffer.allocate(count * Superblock.FINGERPRINT_SIZE);
+            for (int i = first; i < first + count; i++) {
+                stored.put(fingerprints[i].array());
+            }
+            // Not journaled: like the data, it is forced to disk before any record pointing to the blocks
+            disk.write(superblock.getFingerprintOffset() + (long) blocks[first] * Superblock.FINGERPRINT_SIZE,
+                    stored.array(), 0, stored.capacity());
+            k += count;
+        }
+
+        metadataLock.lock();
+        try {
+            for (int i : fresh) {
+                dedup.index(blocks[i], fingerprints[i]);
+            }
+        } finally {
+            metadataLock.unlock();
+        }
+}
 
 
-// Finding a file entry by name
-private FEntry findEntry(String fileName) {
+// Rebuilding the reference counts of a deduplicated volume from its inodes, and its fingerprint index
+// from the stored fingerprints of the blocks in use. Only metadata is read.
+private void loadFingerprints() throws IOException {
         for (FEntry entry : inodeTable) {
-            if (entry != null && entry.getFilename().equals(fileName)) {
-                return entry;
+            if (entry != null) {
+                if (entry.getOverflowStart() >= 0) {
+                    freeOverflow.allocate(entry.getOverflowStart(), entry.getExtents().size() - inlineExtents());
+                }
+                for (Extent extent : entry.getExtents()) {
+                    for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                        dedup.reference(block);
+                    }
+                }
+            }
+        }
+        int perChunk = (1 << 20) / Superblock.FINGERPRINT_SIZE;
+        byte[] chunk = new byte[Math.min(MAXBLOCKS, perChunk) * Superblock.FINGERPRINT_SIZE];
+        for (int first = 0; first < MAXBLOCKS; first += perChunk) {
+            int count = Math.min(perChunk, MAXBLOCKS - first);
+            disk.read(superblock.getFingerprintOffset() + (long) first * Superblock.FINGERPRINT_SIZE,
+                    chunk, 0, count * Superblock.FINGERPRINT_SIZE);
+            for (int i = 0; i < count; i++) {
+                if (dedup.getReferences(first + i) > 0) {
+                    byte[] fingerprint = Arrays.copyOfRange(chunk, i * Superblock.FINGERPRINT_SIZE,
+                            (i + 1) * Superblock.FINGERPRINT_SIZE);
+                    dedup.index(first + i, ByteBuffer.wrap(fingerprint));
+                }
             }
         }
-        return null;
 }
 
 
-// Counting number of free blocks
-private int countFreeBlocks() {
-        int count = 0;
-        for (boolean isFree : freeBlockList) {
-            if (isFree) {
-                count++;
+// Indexing the inode table once it is loaded: names for lookups, the free slots and the listing
+private void buildIndex() {
+        fileIndex = new FileIndex(MAXFILES);
+        freeSlots = new int[MAXFILES];
+        freeSlotCount = 0;
+        for (int i = MAXFILES - 1; i >= 0; i--) {
+            if (inodeTable[i] == null) {
+                freeSlots[freeSlotCount++] = i;
+            } else {
+                fileIndex.put(inodeTable[i].getFilename(), i);
+            }
+        }
+}
+
+
+// Erasing the contents of file blocks, done under the file's write lock before they are freed.
+// Skipped on a deduplicated volume: the blocks may still be shared, and every block there is written whole
+// (zero padded) when it is allocated, so nothing relies on free blocks reading as zeros.
+private void eraseFileBlocks(FEntry entry) throws IOException {
+        if (dedup != null) {
+            return;
+        }
+        for (Extent extent : entry.getExtents()) {
+            zeroRegion(blockPosition(extent.getStart()), (long) extent.getLength() * BLOCK_SIZE);
+            if (cache != null) {
+                cache.invalidate(extent.getStart(), extent.getLength());
             }
         }
-        return count;
 }
 
 
-// Finding a free block index
-private int findFreeBlock() {
-        for (int i = 0; i < freeBlockList.length; i++) {
-            if (freeBlockList[i]) {
-                return i;
+// Freeing file blocks, called with the metadata lock held.
+// On a deduplicated volume each block loses one reference and is only freed when that was the last one.
+private void freeFileBlocks(FEntry entry, Transaction tx) {
+        if (entry.getOverflowStart() >= 0) {
+            freeOverflow.free(entry.getOverflowStart(), entry.getExtents().size() - inlineExtents());
+            entry.setOverflowStart(-1);
+        }
+        for (Extent extent : entry.getExtents()) {
+            if (dedup == null) {
+                markBlocks(extent.getStart(), extent.getLength(), true, tx);     // Free the blocks
+                continue;
+            }
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                if (dedup.release(block)) {
+                    markBlocks(block, 1, true, tx);
+                    if (cache != null) {
+                        cache.invalidate(block, 1);
+                    }
+                }
             }
         }
-        return -1; // If none are free
+        entry.clearExtents();
+        entry.setFilesize(0);
 }
 
 
+// Handing the metadata writes of an operation to the journal.
+// Called with the metadata lock held, and while the operation still holds its file lock, even when
+// it failed half way, so the journal always sees metadata changes in the order they were made in memory.
+// The bitmap bytes are copied here rather than when the blocks were marked: another file's operation
+// may have changed the same bytes since, and the later record must carry both changes.
+private void commit(Transaction tx) {
+        for (int slot : tx.getFreedSlots()) {
+            freeSlots[freeSlotCount++] = slot;  // only now, so no create can write the slot before this record
+        }
+        for (int[] range : tx.getBitmapRanges()) {
+            tx.add(superblock.getBitmapOffset() + range[0], freeBlocks.toBytes(range[0], range[1]));
+        }
+        if (!tx.isEmpty()) {
+            journal.append(tx);
+        }
+}
 
-// Freeing file blocks and erasing their contents
-private void freeFileBlocks(FEntry entry) throws IOException{
 
-        short blockIndex = entry.getFirstBlock();   // Get the first block index
-        if (blockIndex >= 0){
-            freeBlockList[blockIndex] = true;                // Free the block
-            disk.seek((long) blockIndex * BLOCK_SIZE);       // Move the file pointer to the start of the block
-            disk.write(new byte[BLOCK_SIZE]);                // Erase old data
+private void commitLocked(Transaction tx) {
+        metadataLock.lock();
+        try {
+            commit(tx);
+        } finally {
+            metadataLock.unlock();
         }
 }
 
-// Semaphore/Deadlock Prevention Operations
-/*
- * block writing when there is a reader
- * block reading when there is a writer
- * If a writer enters the queue, block readerCount from incrementing
- * Meaning that if a writer is waiting, we dont want anymore readers, giving the writer a chance
- */
 
-private void startRead() throws InterruptedException {
-    readerBlock.acquire();
-    readerBlock.release();
-    mutex.acquire();               // lock counter
-    readerCount++;
-    if (readerCount == 1) {
-        writeLock.acquire();       // first reader blocks writers
-    }
-    mutex.release();
+// Writing zeros over a region of the volume file, in bounded chunks from the shared zero buffer
+private void zeroRegion(long position, long length) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, ZERO_CHUNK);
+            ByteBuffer zeros = ZEROS.duplicate();       // own position and limit, same memory
+            zeros.limit(chunk);
+            disk.write(position, zeros);
+            position += chunk;
+            length -= chunk;
+        }
 }
 
-private void endRead() throws InterruptedException {
-    mutex.acquire();
-    readerCount--;
-    if (readerCount == 0) {
-        writeLock.release();       // last reader unblocks writers
-    }
-    mutex.release();
+
+// Position of a data block inside the volume file
+private long blockPosition(int blockIndex) {
+        return superblock.getDataOffset() + (long) blockIndex * BLOCK_SIZE;
 }
 
-private void startWrite() throws InterruptedException {
-    readerBlock.acquire();          //block new readers
-    writeLock.acquire();           // only one writer allowed, blocks all readers
+
+// Updating the free block bitmap and noting the on-disk bytes that cover those blocks, metadata lock held
+private void markBlocks(int start, int count, boolean free, Transaction tx) {
+        if (free) {
+            freeBlocks.free(start, count);
+            freeExtents.free(start, count);
+        } else {
+            freeBlocks.allocate(start, count);
+            freeExtents.allocate(start, count);
+        }
+        int firstByte = start / 8;
+        int lastByte = (start + count - 1) / 8;
+        tx.markBitmap(firstByte, lastByte);
 }
 
-private void endWrite() {
-    writeLock.release();        
-    readerBlock.release();      //allow new readers
+
+// Persisting one slot of the inode table.
+// Record: used(1) nameLength(1) name(33) pad(1) size(8) extentCount(4) 10 inline extents(8 each).
+// Further extents are linked through the extent table: the entry of the block an extent starts at
+// holds the next extent of the same file, the same way an FNode points to the next block.
+private void writeInode(int slot, Transaction tx) {
+        byte[] record = new byte[Superblock.INODE_SIZE];
+        FEntry entry = inodeTable[slot];
+        if (entry != null) {
+            List<Extent> extents = entry.getExtents();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            byte[] name = entry.getFilename().getBytes(StandardCharsets.UTF_8);
+            buffer.put(0, (byte) 1);
+            buffer.put(1, (byte) name.length);
+            buffer.put(INODE_NAME_OFFSET, name);
+            buffer.put(INODE_FLAGS_OFFSET, (byte) (entry.isCompressed() ? INODE_COMPRESSED : 0));
+            buffer.putLong(INODE_SIZE_OFFSET, entry.getFilesize());
+            buffer.putInt(INODE_EXTENT_COUNT_OFFSET, extents.size());
+            for (int k = 0; k < Math.min(extents.size(), inlineExtents()); k++) {
+                buffer.putInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE, extents.get(k).getStart());
+                buffer.putInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE + 4, extents.get(k).getLength());
+            }
+            if (dedup != null) {
+                // The last inline slot points to the file's own run of extent table entries instead
+                if (entry.getOverflowStart() >= 0) {
+                    buffer.putInt(INODE_EXTENTS_OFFSET + inlineExtents() * EXTENT_SIZE, entry.getOverflowStart());
+                    ByteBuffer overflow = ByteBuffer.allocate((extents.size() - inlineExtents()) * EXTENT_SIZE);
+                    for (Extent extent : extents.subList(inlineExtents(), extents.size())) {
+                        overflow.putInt(extent.getStart()).putInt(extent.getLength());
+                    }
+                    tx.add(superblock.getExtentTableOffset()
+                            + (long) entry.getOverflowStart() * Superblock.EXTENT_LINK_SIZE, overflow.array());
+                }
+                tx.add(superblock.getInodeTableOffset() + (long) slot * Superblock.INODE_SIZE, record);
+                return;
+            }
+            for (int k = INODE_INLINE_EXTENTS; k < extents.size(); k++) {
+                Extent extent = extents.get(k);
+                byte[] link = ByteBuffer.allocate(Superblock.EXTENT_LINK_SIZE)
+                        .putInt(extent.getStart())
+                        .putInt(extent.getLength())
+                        .array();
+                tx.add(superblock.getExtentTableOffset()
+                        + (long) extents.get(k - 1).getStart() * Superblock.EXTENT_LINK_SIZE, link);
+            }
+        }
+        tx.add(superblock.getInodeTableOffset() + (long) slot * Superblock.INODE_SIZE, record);
 }
 
 
+// Decoding one inode record, following its extent links if it has more than fit inline
+private FEntry readInode(byte[] table, int offset) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(table, offset, Superblock.INODE_SIZE).slice();
+        if (record.get(0) == 0) {
+            return null;                // Unused slot
+        }
+        String name = new String(table, offset + INODE_NAME_OFFSET, record.get(1), StandardCharsets.UTF_8);
+        FEntry entry = new FEntry(name, record.getLong(INODE_SIZE_OFFSET));
+        entry.setCompressed((record.get(INODE_FLAGS_OFFSET) & INODE_COMPRESSED) != 0);
 
+        int extentCount = record.getInt(INODE_EXTENT_COUNT_OFFSET);
+        if (dedup != null) {
+            return readDeduplicatedInode(entry, record, extentCount);
+        }
+        int start = 0;
+        byte[] link = new byte[Superblock.EXTENT_LINK_SIZE];
+        for (int k = 0; k < extentCount; k++) {
+            int length;
+            if (k < INODE_INLINE_EXTENTS) {
+                start = record.getInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE);
+                length = record.getInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE + 4);
+            } else {
+                // entry of the previous extent, only very fragmented files get here
+                disk.read(superblock.getExtentTableOffset() + (long) start * Superblock.EXTENT_LINK_SIZE,
+                        link, 0, link.length);
+                ByteBuffer next = ByteBuffer.wrap(link);
+                start = next.getInt();
+                length = next.getInt();
+            }
+            entry.addBlocks(start, length);
+        }
+        return entry;
+}
 
 
+// Decoding the extents of an inode of a deduplicated volume: the inline ones, then the file's own run of
+// extent table entries, read in one go
+private FEntry readDeduplicatedInode(FEntry entry, ByteBuffer record, int extentCount) throws IOException {
+        for (int k = 0; k < Math.min(extentCount, inlineExtents()); k++) {
+            entry.addBlocks(record.getInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE),
+                    record.getInt(INODE_EXTENTS_OFFSET + k * EXTENT_SIZE + 4));
+        }
+        if (extentCount > inlineExtents()) {
+            int overflowStart = record.getInt(INODE_EXTENTS_OFFSET + inlineExtents() * EXTENT_SIZE);
+            byte[] overflow = new byte[(extentCount - inlineExtents()) * EXTENT_SIZE];
+            disk.read(superblock.getExtentTableOffset() + (long) overflowStart * Superblock.EXTENT_LINK_SIZE,
+                    overflow, 0, overflow.length);
+            ByteBuffer extents = ByteBuffer.wrap(overflow);
+            while (extents.hasRemaining()) {
+                entry.addBlocks(extents.getInt(), extents.getInt());
+            }
+            entry.setOverflowStart(overflowStart);
+        }
+        return entry;
+}
+
 
+// Extents an inode holds itself, one fewer on a deduplicated volume, see writeInode()
+private int inlineExtents() {
+        return dedup == null ? INODE_INLINE_EXTENTS : INODE_INLINE_EXTENTS - 1;
+}
 
 
+// Reading the superblock of an existing volume, null for a file that holds none yet: a new or empty file,
+// or one whose formatting stopped before the superblock was written (it goes last, see format()).
+// Any other file is refused rather than formatted over, it may be another version's volume or not a volume.
+private static Superblock readSuperblock(String filename) throws IOException {
+        File file = new File(filename);
+        byte[] header = new byte[Superblock.SIZE];
+        int length = (int) Math.min(file.length(), Superblock.SIZE);
+        if (length > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.readFully(header, 0, length);
+            }
+        }
+        boolean blank = true;
+        for (byte b : header) {
+            blank &= b == 0;
+        }
+        if (blank) {
+            return null;
+        }
+        Superblock superblock = length == Superblock.SIZE ? Superblock.decode(header) : null;
+        if (superblock == null) {
+            throw new IOException("Not a volume, or a volume of an unsupported version: " + filename);
+        }
+        return superblock;
+}
+
+
+// Loading the inode table and bitmap of an existing volume.
+// Only metadata is read, so mounting does not depend on how much data the volume holds.
+private void mount() throws IOException {
+        journal.recover();              // bring the metadata regions up to date before reading them
+
+        // The inode table is read in chunks so a large table needs no equally large buffer
+        int perChunk = Math.max(1, (1 << 20) / Superblock.INODE_SIZE);
+        byte[] table = new byte[Math.min(MAXFILES, perChunk) * Superblock.INODE_SIZE];
+        for (int first = 0; first < MAXFILES; first += perChunk) {
+            int count = Math.min(perChunk, MAXFILES - first);
+            disk.read(superblock.getInodeTableOffset() + (long) first * Superblock.INODE_SIZE,
+                    table, 0, count * Superblock.INODE_SIZE);
+            for (int i = 0; i < count; i++) {
+                inodeTable[first + i] = readInode(table, i * Superblock.INODE_SIZE);
+            }
+        }
+
+        byte[] bits = new byte[superblock.getBitmapSize()];
+        disk.read(superblock.getBitmapOffset(), bits, 0, bits.length);
+        freeBlocks.load(bits);
+        freeExtents.load(freeBlocks);
+        if (dedup != null) {
+            loadFingerprints();
+        }
+        reclaimLeakedBlocks();
+}
+
+
+// Blocks marked used that no inode points to: the volume stopped between a copy-on-write switch and
+// the freeing of the old blocks. They are erased and freed, so free blocks keep reading as zeros.
+private void reclaimLeakedBlocks() throws IOException {
+        FreeBlockBitmap referenced = new FreeBlockBitmap(MAXBLOCKS);
+        for (FEntry entry : inodeTable) {
+            if (entry != null) {
+                for (Extent extent : entry.getExtents()) {
+                    referenced.allocate(extent.getStart(), extent.getLength());
+                }
+            }
+        }
+        Transaction tx = new Transaction();
+        for (int start = referenced.findFree(0); start >= 0; ) {
+            int end = referenced.findUsed(start);       // [start, end) is referenced by no file
+            for (int leaked = freeBlocks.findUsed(start); leaked < end; ) {
+                int next = freeBlocks.findFree(leaked);
+                int leakEnd = next < 0 ? end : Math.min(next, end);
+                zeroRegion(blockPosition(leaked), (long) (leakEnd - leaked) * BLOCK_SIZE);
+                markBlocks(leaked, leakEnd - leaked, true, tx);
+                leaked = freeBlocks.findUsed(leakEnd);
+            }
+            start = referenced.findFree(end);
+        }
+        if (!tx.isEmpty()) {
+            commit(tx);
+            journal.awaitDurable(tx);
+        }
+}
+
+
+// Laying out an empty volume. The superblock goes last so a half-formatted file is never mounted.
+private void format() throws IOException {
+        journal.format();
+        zeroRegion(superblock.getInodeTableOffset(), (long) MAXFILES * Superblock.INODE_SIZE);
+        zeroRegion(superblock.getBitmapOffset(), superblock.getBitmapSize());
+        byte[] header = superblock.encode();
+        disk.write(0, header, 0, header.length);
+        disk.force();
+}
 
 
 }
@@ -0,0 +1,124 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.storage.StorageMode;
+
+// Parameters used when a volume is created. An existing volume keeps the geometry stored in its superblock.
+public class FileSystemOptions {
+
+    private final long totalSize;       // Bytes of file data the volume can hold
+    private int blockSize = 128;
+    private int maxFiles = 0;           // 0 derives it from the number of blocks
+    private StorageMode storageMode = StorageMode.FILE_CHANNEL;
+    private int cacheBlocks = 256;      // Data blocks kept in memory, 0 turns the cache off
+    private long compactionRate = 0;    // Bytes per second the background compactor may copy, 0 turns it off
+    private boolean dedup = false;      // Share blocks with identical contents between files
+    private boolean compression = false;    // writeFile() compresses files, each file records how it is stored
+    private int asyncThreads = 4;       // Threads running the locked part of asynchronous changes
+
+    public FileSystemOptions(long totalSize) {
+        if (totalSize <= 0) {
+            throw new IllegalArgumentException("Total size must be positive.");
+        }
+        this.totalSize = totalSize;
+    }
+
+    public FileSystemOptions blockSize(int blockSize) {
+        if (blockSize < 64) {
+            throw new IllegalArgumentException("Block size must be at least 64 bytes.");
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public FileSystemOptions maxFiles(int maxFiles) {
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("Maximum number of files must be positive.");
+        }
+        this.maxFiles = maxFiles;
+        return this;
+    }
+
+    public FileSystemOptions storageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    public FileSystemOptions cacheBlocks(int cacheBlocks) {
+        if (cacheBlocks < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+        }
+        this.cacheBlocks = cacheBlocks;
+        return this;
+    }
+
+    public FileSystemOptions compactionRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Compaction rate cannot be negative.");
+        }
+        this.compactionRate = bytesPerSecond;
+        return this;
+    }
+
+    public FileSystemOptions dedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    public FileSystemOptions compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public FileSystemOptions asyncThreads(int asyncThreads) {
+        if (asyncThreads <= 0) {
+            throw new IllegalArgumentException("Number of async threads must be positive.");
+        }
+        this.asyncThreads = asyncThreads;
+        return this;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        long blocks = totalSize / blockSize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many blocks, use a larger block size.");
+        }
+        return (int) Math.max(1, blocks);
+    }
+
+    // One inode for every two blocks unless set explicitly (5 files for the 10-block default volume)
+    public int getMaxFiles() {
+        return maxFiles > 0 ? maxFiles : Math.max(1, getBlockCount() / 2);
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public int getCacheBlocks() {
+        return cacheBlocks;
+    }
+
+    public long getCompactionRate() {
+        return compactionRate;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+}
@@ -0,0 +1,36 @@
+package ca.concordia.filesystem;
+
+// Counters of the metadata journal, used to check how well group commit batches operations
+public class JournalStats {
+
+    private final long transactions;    // Operations made durable
+    private final long commits;         // Journal flushes, each costs the same fixed number of fsyncs
+    private final long unjournaled;     // Transactions larger than the journal, written in place without atomicity
+
+    JournalStats(long transactions, long commits, long unjournaled) {
+        this.transactions = transactions;
+        this.commits = commits;
+        this.unjournaled = unjournaled;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getCommits() {
+        return commits;
+    }
+
+    public long getUnjournaled() {
+        return unjournaled;
+    }
+
+    public double getOpsPerCommit() {
+        return commits == 0 ? 0 : (double) transactions / commits;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ops in %d commits (%.1f ops/commit)", transactions, commits, getOpsPerCommit());
+    }
+}
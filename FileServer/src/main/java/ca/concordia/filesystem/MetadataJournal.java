@@ -0,0 +1,349 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.storage.BlockStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Write-ahead journal for the metadata regions (inode table, extent table, bitmap).
+//
+// Operations append their Transaction while they still hold the file system locks, so the journal
+// order matches the order the changes were made in memory. They then wait for durability outside
+// those locks. The first waiter becomes the leader and flushes everything appended so far with one
+// journal write; operations arriving meanwhile queue up for the next flush (group commit).
+// Asynchronous operations do not wait: whenDurable() hands them a future the flush completes.
+// Metadata is written to its home location only after its record is on disk, and replayed at mount.
+//
+// Region layout: header [magic(4) startSequence(8)] followed by records
+//   [magic(4) sequence(8) length(4) crc(4)] [writeCount(4) (position(8) length(4) bytes)...]
+class MetadataJournal {
+
+    private static final int HEADER_MAGIC = 0x4A524E4C;    // "JRNL"
+    private static final int RECORD_MAGIC = 0x52454352;    // "RECR"
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private final BlockStore disk;
+    private final long offset;          // Start of the journal region in the volume file
+    private final int size;             // Size of the journal region
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private List<Transaction> pending = new ArrayList<>();
+    private boolean flushing;
+    private boolean flushScheduled;     // A flush for the futures of whenDurable() is queued
+    private long lastSequence;          // Last sequence handed out
+    private long durableSequence;       // Every transaction up to this one is on disk
+    private int head;                   // Where the next record goes, only touched by the flushing thread
+
+    private long transactions;
+    private long commits;
+    private long unjournaled;           // Transactions too large for the journal, see flush()
+
+    MetadataJournal(BlockStore disk, long offset, int size) {
+        this.disk = disk;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    // Empty journal for a freshly formatted volume
+    void format() throws IOException {
+        lastSequence = 0;
+        durableSequence = 0;
+        writeHeader(1);
+    }
+
+    // Re-applies every committed record to its home location, then empties the journal
+    void recover() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        disk.read(offset, header, 0, HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != HEADER_MAGIC) {
+            throw new IOException("Journal header is corrupted.");
+        }
+        long expected = buffer.getLong();
+
+        int position = HEADER_SIZE;
+        byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+        while (position + RECORD_HEADER_SIZE <= size) {
+            disk.read(offset + position, recordHeader, 0, RECORD_HEADER_SIZE);
+            ByteBuffer record = ByteBuffer.wrap(recordHeader);
+            if (record.getInt() != RECORD_MAGIC || record.getLong() != expected) {
+                break;                  // End of the committed records
+            }
+            int length = record.getInt();
+            int crc = record.getInt();
+            if (length < 4 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            disk.read(offset + position + RECORD_HEADER_SIZE, payload, 0, length);
+            if (checksum(payload) != crc) {
+                break;                  // Torn record, it was never acknowledged
+            }
+            ByteBuffer writes = ByteBuffer.wrap(payload);
+            int count = writes.getInt();
+            for (int i = 0; i < count; i++) {
+                long target = writes.getLong();
+                int bytes = writes.getInt();
+                disk.write(target, payload, writes.position(), bytes);
+                writes.position(writes.position() + bytes);
+            }
+            position += RECORD_HEADER_SIZE + length;
+            expected++;
+        }
+
+        disk.force();
+        lastSequence = expected - 1;
+        durableSequence = lastSequence;
+        writeHeader(expected);
+    }
+
+    // Queues a transaction, must be called in the same order the changes were made
+    void append(Transaction tx) {
+        lock.lock();
+        try {
+            tx.sequence = ++lastSequence;
+            pending.add(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the transaction is on disk, flushing the pending group if nobody else is
+    void awaitDurable(Transaction tx) throws IOException {
+        while (tx.mergedInto != null) {
+            tx = tx.mergedInto;
+        }
+        lock.lock();
+        try {
+            flushUntil(tx.sequence, tx);
+            if (tx.failure != null) {
+                throw tx.failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Completes once the transaction is on disk, without a thread waiting for it: a flush of the pending
+    // group is queued on flusher, which one thread runs for every future registered until then.
+    // The future completes on the thread that flushed, so its dependents should be short or run elsewhere.
+    CompletableFuture<Void> whenDurable(Transaction tx, Executor flusher) {
+        while (tx.mergedInto != null) {
+            tx = tx.mergedInto;
+        }
+        lock.lock();
+        try {
+            if (tx.failure != null) {
+                return CompletableFuture.failedFuture(tx.failure);
+            }
+            if (durableSequence >= tx.sequence) {
+                return CompletableFuture.completedFuture(null);     // also when it was never appended
+            }
+            if (tx.durable == null) {
+                tx.durable = new CompletableFuture<>();
+            }
+            if (!flushScheduled) {
+                flushScheduled = true;
+                try {
+                    flusher.execute(this::flushScheduled);
+                } catch (RejectedExecutionException e) {
+                    flushScheduled = false;
+                    flushUntil(tx.sequence, tx);        // the pool is shut down, flush on this thread
+                }
+            }
+            return tx.durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queued by whenDurable(), flushes everything appended so far
+    private void flushScheduled() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            flushUntil(lastSequence, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Flushes everything appended so far, e.g. changes nobody waits for before the volume is closed
+    void flushAll() throws IOException {
+        lock.lock();
+        try {
+            long last = lastSequence;
+            flushUntil(last, null);
+            if (durableSequence < last) {
+                throw new IOException("Journal flush failed.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held, flushes pending groups until sequence is durable, or tx failed.
+    // The lock is released while a group is written and while its futures are completed.
+    private void flushUntil(long sequence, Transaction tx) {
+        while (durableSequence < sequence && (tx == null || tx.failure == null)) {
+            if (flushing) {
+                flushed.awaitUninterruptibly();
+                continue;
+            }
+            if (pending.isEmpty()) {
+                break;              // Not appended, nothing to wait for
+            }
+            flushing = true;
+            List<Transaction> group = pending;
+            pending = new ArrayList<>();
+            lock.unlock();
+            IOException failure = null;
+            try {
+                flush(group);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                lock.lock();
+            }
+            flushing = false;
+            if (failure == null) {
+                durableSequence = group.get(group.size() - 1).sequence;
+                transactions += group.size();
+                commits++;
+            } else {
+                for (Transaction failed : group) {
+                    failed.failure = failure;
+                }
+            }
+            flushed.signalAll();
+            lock.unlock();
+            try {
+                for (Transaction done : group) {
+                    if (done.durable == null) {
+                        continue;
+                    }
+                    if (failure == null) {
+                        done.durable.complete(null);
+                    } else {
+                        done.durable.completeExceptionally(failure);
+                    }
+                }
+            } finally {
+                lock.lock();
+            }
+        }
+    }
+
+    // Largest transaction payload one record can hold, larger ones lose their atomicity (see flush())
+    int getRecordCapacity() {
+        return size - HEADER_SIZE - RECORD_HEADER_SIZE;
+    }
+
+    JournalStats getStats() {
+        lock.lock();
+        try {
+            return new JournalStats(transactions, commits, unjournaled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush(List<Transaction> group) throws IOException {
+        // Data blocks written by these operations must be on disk before the records pointing to them
+        disk.force();
+
+        int start = 0;
+        while (start < group.size()) {
+            // Take as many transactions as fit in what is left of the journal
+            int end = start;
+            int length = 0;
+            while (end < group.size() && head + length + recordSize(group.get(end)) <= size) {
+                length += recordSize(group.get(end));
+                end++;
+            }
+            if (end == start) {
+                long sequence = group.get(start).sequence;
+                if (head > HEADER_SIZE) {
+                    // Everything already in the journal has been applied, make that durable and start over
+                    writeHeader(sequence);
+                    continue;
+                }
+                // Larger than the whole journal: write it in place, without atomicity
+                applyAll(group.subList(start, start + 1));
+                lock.lock();
+                try {
+                    unjournaled++;
+                } finally {
+                    lock.unlock();
+                }
+                writeHeader(sequence + 1);
+                start++;
+                continue;
+            }
+
+            ByteBuffer records = ByteBuffer.allocate(length);
+            for (Transaction tx : group.subList(start, end)) {
+                byte[] payload = encode(tx);
+                records.putInt(RECORD_MAGIC)
+                        .putLong(tx.sequence)
+                        .putInt(payload.length)
+                        .putInt(checksum(payload))
+                        .put(payload);
+            }
+            disk.write(offset + head, records.array(), 0, length);
+            disk.force();
+            head += length;
+
+            applyAll(group.subList(start, end));
+            start = end;
+        }
+    }
+
+    private static int recordSize(Transaction tx) {
+        return RECORD_HEADER_SIZE + tx.payloadSize();
+    }
+
+    private void applyAll(List<Transaction> batch) throws IOException {
+        for (Transaction tx : batch) {
+            for (Transaction.Write write : tx.getWrites()) {
+                disk.write(write.position, write.bytes, 0, write.bytes.length);
+            }
+        }
+    }
+
+    // Resets the journal so replay starts at startSequence. Forces first so no applied record is lost.
+    private void writeHeader(long startSequence) throws IOException {
+        disk.force();
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(HEADER_MAGIC)
+                .putLong(startSequence)
+                .array();
+        disk.write(offset, header, 0, HEADER_SIZE);
+        head = HEADER_SIZE;
+    }
+
+    private static byte[] encode(Transaction tx) {
+        ByteBuffer payload = ByteBuffer.allocate(tx.payloadSize());
+        payload.putInt(tx.getWrites().size());
+        for (Transaction.Write write : tx.getWrites()) {
+            payload.putLong(write.position).putInt(write.bytes.length).put(write.bytes);
+        }
+        return payload.array();
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,34 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.storage.BufferPool;
+
+import java.nio.ByteBuffer;
+
+// File contents in a buffer borrowed from the file system's pool.
+// The buffer goes back to the pool on close(), it must not be used after that.
+public class PooledBuffer implements AutoCloseable {
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    // The data is between position and limit
+    public ByteBuffer buffer() {
+        if (buffer == null) {
+            throw new IllegalStateException("Buffer already released.");
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.concordia.filesystem;
+
+import java.util.concurrent.Semaphore;
+
+// Readers/writer lock built from semaphores, writer-preferring.
+/*
+ * block writing when there is a reader
+ * block reading when there is a writer
+ * If a writer enters the queue, block readerCount from incrementing
+ * Meaning that if a writer is waiting, we dont want anymore readers, giving the writer a chance
+ */
+class ReaderWriterLock {
+
+    private final Semaphore mutex = new Semaphore(1);      // protects readerCount
+    private final Semaphore writeLock = new Semaphore(1);  // blocks writers OR readers
+    private final Semaphore readerBlock = new Semaphore(1); // using this to prevent starvation of a reader
+    private int readerCount = 0;
+
+    void startRead() throws InterruptedException {
+        readerBlock.acquire();
+        readerBlock.release();
+        mutex.acquire();               // lock counter
+        readerCount++;
+        if (readerCount == 1) {
+            writeLock.acquire();       // first reader blocks writers
+        }
+        mutex.release();
+    }
+
+    // Like startRead() but never waits: false, holding nothing, when a writer has or wants the lock
+    boolean tryStartRead() {
+        if (!readerBlock.tryAcquire()) {
+            return false;
+        }
+        readerBlock.release();
+        if (!mutex.tryAcquire()) {
+            return false;               // another reader may be the first one, waiting for a writer
+        }
+        if (readerCount == 0 && !writeLock.tryAcquire()) {
+            mutex.release();
+            return false;
+        }
+        readerCount++;
+        mutex.release();
+        return true;
+    }
+
+    void endRead() throws InterruptedException {
+        mutex.acquire();
+        readerCount--;
+        if (readerCount == 0) {
+            writeLock.release();       // last reader unblocks writers
+        }
+        mutex.release();
+    }
+
+    void startWrite() throws InterruptedException {
+        readerBlock.acquire();          //block new readers
+        writeLock.acquire();           // only one writer allowed, blocks all readers
+    }
+
+    void endWrite() {
+        writeLock.release();
+        readerBlock.release();      //allow new readers
+    }
+}
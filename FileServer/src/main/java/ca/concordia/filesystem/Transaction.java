@@ -0,0 +1,85 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Metadata writes of one operation, made durable together by the MetadataJournal
+class Transaction {
+
+    // One write to the metadata regions of the volume
+    static class Write {
+        final long position;
+        final byte[] bytes;
+
+        Write(long position, byte[] bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    private final List<Write> writes = new ArrayList<>();
+    private final List<int[]> bitmapRanges = new ArrayList<>();   // [firstByte, lastByte] of changed bitmap bytes
+    private final List<Integer> freedSlots = new ArrayList<>();  // Inode slots of deleted files
+    long sequence;              // Assigned by the journal when the transaction is appended
+    IOException failure;        // Set when the group this transaction was flushed with failed
+    CompletableFuture<Void> durable;    // Completed by the flush, see MetadataJournal.whenDurable()
+    Transaction mergedInto;     // Set when its changes were committed as part of another one, see addAll()
+
+    void add(long position, byte[] bytes) {
+        writes.add(new Write(position, bytes));
+    }
+
+    // Bitmap bytes are only copied when the transaction is committed, see FileSystemManager.commit()
+    void markBitmap(int firstByte, int lastByte) {
+        bitmapRanges.add(new int[]{firstByte, lastByte});
+    }
+
+    List<int[]> getBitmapRanges() {
+        return bitmapRanges;
+    }
+
+    // A deleted file's slot goes back to the free list when the transaction is committed
+    void freeSlot(int slot) {
+        freedSlots.add(slot);
+    }
+
+    List<Integer> getFreedSlots() {
+        return freedSlots;
+    }
+
+    List<Write> getWrites() {
+        return writes;
+    }
+
+    boolean isEmpty() {
+        return writes.isEmpty() && bitmapRanges.isEmpty();
+    }
+
+    // Takes over the changes of another transaction, which must not be committed itself
+    void addAll(Transaction other) {
+        writes.addAll(other.writes);
+        bitmapRanges.addAll(other.bitmapRanges);
+        freedSlots.addAll(other.freedSlots);
+        other.mergedInto = this;
+    }
+
+    // Bytes this transaction will take in a journal record once committed, with its bitmap bytes
+    int committedSize() {
+        int size = payloadSize();
+        for (int[] range : bitmapRanges) {
+            size += 12 + range[1] - range[0] + 1;
+        }
+        return size;
+    }
+
+    // Bytes this transaction takes in a journal record
+    int payloadSize() {
+        int size = 4;
+        for (Write write : writes) {
+            size += 12 + write.bytes.length;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,144 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Fixed number of data blocks kept in memory, replaced with the CLOCK algorithm.
+// A block enters the cache with its reference bit clear and only gets it on a later hit, so blocks
+// read once (a scan) are the first ones the hand evicts and do not push out the hot set.
+// Runs are cached all or nothing: a run is a hit only if every one of its blocks is present.
+// Methods are synchronized, the lock is only held while copying blocks in or out.
+public class BlockCache {
+
+    private final int blockSize;
+    private final byte[][] frames;
+    private final int[] frameBlocks;        // Block held by each frame, -1 when empty
+    private final boolean[] referenced;
+    private final Map<Integer, Integer> frameOf = new HashMap<>();     // block -> frame
+    private int hand;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // capacity is a number of blocks and must be positive
+    public BlockCache(int capacity, int blockSize) {
+        this.blockSize = blockSize;
+        this.frames = new byte[capacity][blockSize];
+        this.frameBlocks = new int[capacity];
+        this.referenced = new boolean[capacity];
+        Arrays.fill(frameBlocks, -1);
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    // Copies length bytes of the run starting at block start into dst, false if any block is missing
+    public boolean read(int start, byte[] dst, int offset, int length) {
+        return read(start, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    // Same, for dst.remaining() bytes. On a hit the position of dst is advanced past them.
+    public synchronized boolean read(int start, ByteBuffer dst) {
+        int length = dst.remaining();
+        int count = (length + blockSize - 1) / blockSize;
+        for (int k = 0; k < count; k++) {
+            if (!frameOf.containsKey(start + k)) {
+                misses++;
+                return false;
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            int frame = frameOf.get(start + k);
+            referenced[frame] = true;
+            dst.put(frames[frame], 0, Math.min(blockSize, length - k * blockSize));
+        }
+        hits++;
+        return true;
+    }
+
+    // Adds a run read from disk. The bytes past length are taken as zero, like unused parts of a block.
+    public void put(int start, byte[] src, int offset, int length) {
+        put(start, ByteBuffer.wrap(src), offset, length);
+    }
+
+    // Same, taking length bytes of src from index on, without moving its position
+    public synchronized void put(int start, ByteBuffer src, int index, int length) {
+        int count = (length + blockSize - 1) / blockSize;
+        for (int k = 0; k < count; k++) {
+            Integer frame = frameOf.get(start + k);
+            if (frame == null) {
+                frame = evict();
+                frameBlocks[frame] = start + k;
+                referenced[frame] = false;      // earns its place on the next hit
+                frameOf.put(start + k, frame);
+            }
+            copyIn(frame, src, index + k * blockSize, Math.min(blockSize, length - k * blockSize));
+        }
+    }
+
+    // Write-through: refreshes the blocks of the run that are cached, does not add the others
+    public synchronized void update(int start, byte[] src, int offset, int length) {
+        int count = (length + blockSize - 1) / blockSize;
+        ByteBuffer buffer = ByteBuffer.wrap(src);
+        for (int k = 0; k < count; k++) {
+            Integer frame = frameOf.get(start + k);
+            if (frame != null) {
+                copyIn(frame, buffer, offset + k * blockSize, Math.min(blockSize, length - k * blockSize));
+            }
+        }
+    }
+
+    // Drops count blocks starting at start, used when blocks are freed
+    public synchronized void invalidate(int start, int count) {
+        if (frameOf.isEmpty()) {
+            return;
+        }
+        for (int block = start; block < start + count; block++) {
+            Integer frame = frameOf.remove(block);
+            if (frame != null) {
+                frameBlocks[frame] = -1;
+                referenced[frame] = false;
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void copyIn(int frame, ByteBuffer src, int index, int length) {
+        src.get(index, frames[frame], 0, length);
+        Arrays.fill(frames[frame], length, blockSize, (byte) 0);
+    }
+
+    // Frame for a new block: the first empty or unreferenced one after the hand, clearing bits on the way
+    private int evict() {
+        while (true) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            if (frameBlocks[frame] == -1) {
+                return frame;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;          // second chance
+            } else {
+                frameOf.remove(frameBlocks[frame]);
+                frameBlocks[frame] = -1;
+                evictions++;
+                return frame;
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reference counts and content fingerprints of the data blocks of a deduplicated volume.
+// A block is shared by every file holding the same bytes at a block boundary (same SHA-256 of the whole
+// block, zero padded past the end of a file), and is only freed once no file points to it.
+public class DedupIndex {
+
+    private final int[] references;             // Files (or places in a file) pointing to each block
+    private final ByteBuffer[] fingerprints;    // Fingerprint each block is indexed under, null if it is not
+    private final Map<ByteBuffer, Integer> blocks = new HashMap<>();
+    private long logicalBlocks;                 // Sum of the references
+    private long physicalBlocks;                // Blocks with at least one reference
+    private long sharedWrites;                  // Blocks not written because an identical one was found
+
+    public DedupIndex(int size) {
+        this.references = new int[size];
+        this.fingerprints = new ByteBuffer[size];
+    }
+
+    // Block holding these contents, -1 if there is none
+    public int find(ByteBuffer fingerprint) {
+        Integer block = blocks.get(fingerprint);
+        return block == null ? -1 : block;
+    }
+
+    // Makes a block findable by its contents, unless another block already holds them
+    public void index(int block, ByteBuffer fingerprint) {
+        if (fingerprints[block] == null && !blocks.containsKey(fingerprint)) {
+            fingerprints[block] = fingerprint;
+            blocks.put(fingerprint, block);
+        }
+    }
+
+    public void reference(int block) {
+        if (references[block]++ == 0) {
+            physicalBlocks++;
+        }
+        logicalBlocks++;
+    }
+
+    // Drops one reference. Returns true when that was the last one: the block can no longer be found
+    // and the caller must free it.
+    public boolean release(int block) {
+        logicalBlocks--;
+        if (--references[block] > 0) {
+            return false;
+        }
+        physicalBlocks--;
+        if (fingerprints[block] != null) {
+            blocks.remove(fingerprints[block]);
+            fingerprints[block] = null;
+        }
+        return true;
+    }
+
+    public int getReferences(int block) {
+        return references[block];
+    }
+
+    public void countSharedWrite() {
+        sharedWrites++;
+    }
+
+    public long getLogicalBlocks() {
+        return logicalBlocks;
+    }
+
+    public long getPhysicalBlocks() {
+        return physicalBlocks;
+    }
+
+    public long getSharedWrites() {
+        return sharedWrites;
+    }
+}
@@ -0,0 +1,30 @@
+package ca.concordia.filesystem.datastructures;
+
+// A run of contiguous blocks belonging to one file
+public class Extent {
+
+    private final int start;    // First block of the run
+    private final int length;   // Number of blocks in the run
+
+    public Extent(int start, int length) {
+        if (start < 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid extent.");
+        }
+        this.start = start;
+        this.length = length;
+    }
+
+    // Getters
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Block right after the run
+    public int getEnd() {
+        return start + length;
+    }
+}
@@ -1,21 +1,29 @@
 package ca.concordia.filesystem.datastructures;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class FEntry {
 
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private long filesize;
+    private final List<Extent> extents = new ArrayList<>(); // Runs of data blocks, in file order
+    private int[] extentFirstBlocks = new int[4];           // File block at which each extent starts (prefix sums)
+    private int blockCount;
+    private long version;
+    private boolean compressed;                             // The blocks hold the file as compressed chunks
+    private int overflowStart = -1;                         // Extent table entry of the extents past the inode,
+                                                            // only used on deduplicated volumes
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException{
+    public FEntry(String filename, long filesize) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
         if (filename.length() > 11) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
         }
         this.filename = filename;
         this.filesize = filesize;
-        this.firstBlock = firstblock;
     }
 
     // Getters and Setters
@@ -30,23 +38,111 @@ public class FEntry {
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(long filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
+        version++;
     }
 
-    public short getFirstBlock() {
-        return firstBlock;
+    public List<Extent> getExtents() {
+        return Collections.unmodifiableList(extents);
     }
 
-    // Setter for first block position
-    public void setFirstBlock(short firstBlock) {
-        this.firstBlock = firstBlock;
+    // Blocks held by the file
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    // File block at which extent k starts
+    public int getExtentFirstBlock(int k) {
+        return extentFirstBlocks[k];
+    }
+
+    // Index of the extent holding block fileBlock of the file, a binary search over the prefix sums,
+    // so a random offset maps to its block in O(log extents) however large the file is.
+    // Returns the number of extents when fileBlock is past the last block.
+    public int findExtent(long fileBlock) {
+        if (fileBlock >= blockCount) {
+            return extents.size();
+        }
+        int low = 0;
+        int high = extents.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (extentFirstBlocks[mid] <= fileBlock) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Attach count blocks starting at start to the end of the file.
+    // When they directly follow the last extent, that extent simply grows, so this stays O(1).
+    public void addBlocks(int start, int count) {
+        int last = extents.size() - 1;
+        if (last >= 0 && extents.get(last).getEnd() == start) {
+            Extent tail = extents.get(last);
+            extents.set(last, new Extent(tail.getStart(), tail.getLength() + count));
+            blockCount += count;
+        } else {
+            appendExtent(new Extent(start, count));
+        }
+        version++;
+    }
+
+    public void clearExtents() {
+        extents.clear();
+        blockCount = 0;
+        version++;
+    }
+
+    // Points the file to other blocks, e.g. the copy written by a copy-on-write rewrite
+    public void replaceExtents(List<Extent> blocks) {
+        extents.clear();
+        blockCount = 0;
+        for (Extent extent : blocks) {
+            appendExtent(extent);
+        }
+        version++;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // First of the contiguous extent table entries holding the extents that do not fit in the inode, -1 if none
+    public int getOverflowStart() {
+        return overflowStart;
+    }
+
+    public void setOverflowStart(int overflowStart) {
+        this.overflowStart = overflowStart;
+    }
+
+    // Changes every time the file's size or blocks change (every write sets the size),
+    // so a copy made from an older version can be detected
+    public long getVersion() {
+        return version;
+    }
+
+    private void appendExtent(Extent extent) {
+        if (extents.size() == extentFirstBlocks.length) {
+            extentFirstBlocks = Arrays.copyOf(extentFirstBlocks, extentFirstBlocks.length * 2);
+        }
+        extentFirstBlocks[extents.size()] = blockCount;
+        extents.add(extent);
+        blockCount += extent.getLength();
     }
 }
@@ -0,0 +1,127 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Filename -> inode slot index, an open-addressing hash table with linear probing.
+// Removal shifts the following entries back instead of leaving tombstones,
+// so lookups stay short no matter how many files were created and deleted.
+// Methods are synchronized: readers look names up without holding the namespace lock.
+public class FileIndex {
+
+    private String[] names;
+    private int[] hashes;
+    private int[] slots;
+    private int mask;
+    private int count;
+    private String[] sortedNames;   // Built by names() when first needed after a change, null until then
+
+    public FileIndex(int expectedFiles) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedFiles * 2 - 1)) << 1;   // load factor <= 0.5
+        allocate(capacity);
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Inode slot of the file, -1 if there is no such file
+    public synchronized int get(String name) {
+        int hash = hash(name);
+        for (int i = hash & mask; names[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && names[i].equals(name)) {
+                return slots[i];
+            }
+        }
+        return -1;
+    }
+
+    // Adds or replaces the slot of a file
+    public synchronized void put(String name, int slot) {
+        if ((count + 1) * 2 > names.length) {
+            resize(names.length * 2);
+        }
+        int hash = hash(name);
+        int i = hash & mask;
+        for (; names[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && names[i].equals(name)) {
+                slots[i] = slot;
+                return;
+            }
+        }
+        names[i] = name;
+        hashes[i] = hash;
+        slots[i] = slot;
+        count++;
+        sortedNames = null;
+    }
+
+    public synchronized void remove(String name) {
+        int hash = hash(name);
+        int i = hash & mask;
+        while (names[i] != null && !(hashes[i] == hash && names[i].equals(name))) {
+            i = (i + 1) & mask;
+        }
+        if (names[i] == null) {
+            return;
+        }
+        // Shift back every following entry of the cluster that would not be found past the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; names[j] != null; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                names[hole] = names[j];
+                hashes[hole] = hashes[j];
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        names[hole] = null;
+        count--;
+        sortedNames = null;
+    }
+
+    // Every name, sorted. The array is built once per change to the index, by the first call after it,
+    // so creating and deleting files costs nothing here; each call returns a copy the caller may keep.
+    public synchronized String[] names() {
+        if (sortedNames == null) {
+            String[] list = new String[count];
+            int n = 0;
+            for (String name : names) {
+                if (name != null) {
+                    list[n++] = name;
+                }
+            }
+            Arrays.sort(list);
+            sortedNames = list;
+        }
+        return sortedNames.clone();
+    }
+
+    // FNV-1a over the characters of the name (its bytes, for the ASCII names clients use)
+    private static int hash(String name) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        hashes = new int[capacity];
+        slots = new int[capacity];
+        mask = capacity - 1;
+        count = 0;
+    }
+
+    private void resize(int capacity) {
+        String[] oldNames = names;
+        int[] oldSlots = slots;
+        allocate(capacity);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                put(oldNames[i], oldSlots[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ca.concordia.filesystem.datastructures;
+
+// Free-space bitmap packed into longs, 64 blocks per word.
+// A set bit means the block is free. A second, smaller level has one bit per word telling whether
+// that word still has a free block, so searching skips 4096 used blocks per summary word.
+// The number of free blocks is kept up to date on every change, so "is there room" is O(1).
+public class FreeBlockBitmap {
+
+    private final int size;
+    private final long[] words;
+    private final long[] summary;
+    private int freeCount;
+
+    // All blocks start free
+    public FreeBlockBitmap(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+        this.summary = new long[(words.length + 63) >>> 6];
+        setRange(0, size, true);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    // Mark count blocks starting at start as used
+    public void allocate(int start, int count) {
+        setRange(start, start + count, false);
+    }
+
+    // Mark count blocks starting at start as free
+    public void free(int start, int count) {
+        setRange(start, start + count, true);
+    }
+
+    // First free block at or after from, -1 if there is none
+    public int findFree(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);       // ignore the blocks before from
+        if (word != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        w = nextFreeWord(w + 1);
+        return w < 0 ? -1 : (w << 6) + Long.numberOfTrailingZeros(words[w]);
+    }
+
+    // First used block at or after from, size if every block from there on is free
+    public int findUsed(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return size;
+        }
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return size;
+            }
+            word = ~words[w];
+        }
+        return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // On-disk form of blocks [firstByte * 8, (lastByte + 1) * 8): one bit per block, set when used
+    public byte[] toBytes(int firstByte, int lastByte) {
+        byte[] bytes = new byte[lastByte - firstByte + 1];
+        for (int b = firstByte; b <= lastByte; b++) {
+            long used = ~words[b >>> 3] & validBits(b >>> 3);
+            bytes[b - firstByte] = (byte) (used >>> ((b & 7) << 3));
+        }
+        return bytes;
+    }
+
+    // Replaces the whole bitmap with its on-disk form
+    public void load(byte[] bytes) {
+        for (int w = 0; w < words.length; w++) {
+            long used = 0;
+            for (int k = 0; k < 8 && (w << 3) + k < bytes.length; k++) {
+                used |= (bytes[(w << 3) + k] & 0xFFL) << (k << 3);
+            }
+            words[w] = ~used & validBits(w);
+        }
+        freeCount = 0;
+        for (int w = 0; w < words.length; w++) {
+            freeCount += Long.bitCount(words[w]);
+            updateSummary(w);
+        }
+    }
+
+    private void setRange(int from, int to, boolean free) {
+        for (int w = from >>> 6; w < words.length && (w << 6) < to; w++) {
+            long mask = -1L;
+            if (w == from >>> 6) {
+                mask &= -1L << from;
+            }
+            if (w == (to - 1) >>> 6) {
+                mask &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            long before = words[w];
+            words[w] = free ? before | mask : before & ~mask;
+            freeCount += Long.bitCount(words[w]) - Long.bitCount(before);
+            updateSummary(w);
+        }
+    }
+
+    // Bits of word w that stand for real blocks, the tail of the last word is never free
+    private long validBits(int w) {
+        int bits = size - (w << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private void updateSummary(int w) {
+        if (words[w] != 0) {
+            summary[w >>> 6] |= 1L << w;
+        } else {
+            summary[w >>> 6] &= ~(1L << w);
+        }
+    }
+
+    // First word at or after w that has a free block, -1 if there is none
+    private int nextFreeWord(int w) {
+        if (w >= words.length) {
+            return -1;
+        }
+        int s = w >>> 6;
+        long bits = summary[s] & (-1L << w);
+        while (bits == 0) {
+            if (++s == summary.length) {
+                return -1;
+            }
+            bits = summary[s];
+        }
+        return (s << 6) + Long.numberOfTrailingZeros(bits);
+    }
+}
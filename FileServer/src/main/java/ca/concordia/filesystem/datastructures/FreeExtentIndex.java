@@ -0,0 +1,110 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// The free blocks of the volume as maximal runs, indexed two ways:
+// by first block, to merge a freed run with its neighbours and to split the run an allocation comes from,
+// and by length, to find the smallest run that holds a given number of blocks (best fit) in O(log runs).
+// Kept next to the FreeBlockBitmap, which remains the on-disk form.
+public class FreeExtentIndex {
+
+    private final TreeMap<Integer, Integer> byStart = new TreeMap<>();     // first block -> length
+    private final TreeSet<Long> byLength = new TreeSet<>();                // length << 32 | first block
+    private int freeCount;
+
+    // All blocks start free
+    public FreeExtentIndex(int size) {
+        if (size > 0) {
+            insert(0, size);
+        }
+    }
+
+    // Replaces the index with the free runs of a bitmap
+    public void load(FreeBlockBitmap bitmap) {
+        byStart.clear();
+        byLength.clear();
+        freeCount = 0;
+        for (int start = bitmap.findFree(0); start >= 0; ) {
+            int end = bitmap.findUsed(start);
+            insert(start, end - start);
+            start = bitmap.findFree(end);
+        }
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public int getRunCount() {
+        return byStart.size();
+    }
+
+    // Length of the largest free run, 0 if no block is free
+    public int getLargestRun() {
+        return byLength.isEmpty() ? 0 : (int) (byLength.last() >>> 32);
+    }
+
+    // Smallest free run of at least count blocks (the lowest one among equals), null if none is that large
+    public Extent bestFit(int count) {
+        Long key = byLength.ceiling((long) count << 32);
+        return key == null ? null : new Extent((int) key.longValue(), (int) (key >>> 32));
+    }
+
+    // Largest free run, null if no block is free
+    public Extent largest() {
+        return byLength.isEmpty() ? null : new Extent((int) byLength.last().longValue(), getLargestRun());
+    }
+
+    // Free run starting exactly at block, null if there is none
+    public Extent runStartingAt(int block) {
+        Integer length = byStart.get(block);
+        return length == null ? null : new Extent(block, length);
+    }
+
+    // Mark count blocks starting at start as used, they must all be free
+    public void allocate(int start, int count) {
+        Map.Entry<Integer, Integer> run = byStart.floorEntry(start);
+        if (run == null || run.getKey() + run.getValue() < start + count) {
+            throw new IllegalArgumentException("Blocks are not free.");
+        }
+        int runStart = run.getKey();
+        int runEnd = runStart + run.getValue();
+        remove(runStart, run.getValue());
+        if (runStart < start) {
+            insert(runStart, start - runStart);
+        }
+        if (start + count < runEnd) {
+            insert(start + count, runEnd - start - count);
+        }
+    }
+
+    // Mark count blocks starting at start as free, merging them with the free runs around them
+    public void free(int start, int count) {
+        int end = start + count;
+        Map.Entry<Integer, Integer> before = byStart.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            remove(before.getKey(), before.getValue());
+            start = before.getKey();
+        }
+        Integer after = byStart.get(end);
+        if (after != null) {
+            remove(end, after);
+            end += after;
+        }
+        insert(start, end - start);
+    }
+
+    private void insert(int start, int length) {
+        byStart.put(start, length);
+        byLength.add((long) length << 32 | start);
+        freeCount += length;
+    }
+
+    private void remove(int start, int length) {
+        byStart.remove(start);
+        byLength.remove((long) length << 32 | start);
+        freeCount -= length;
+    }
+}
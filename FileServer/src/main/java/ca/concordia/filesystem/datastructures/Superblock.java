@@ -0,0 +1,154 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+// First block of the volume: identifies the format and describes the geometry.
+// Layout of the volume file, every region starts on a block boundary:
+//   [superblock][journal][inode table][extent table][free-space bitmap][fingerprints][data blocks]
+// The fingerprint region only exists on deduplicated volumes, so other volumes keep the version 3 layout.
+public class Superblock {
+
+    public static final int MAGIC = 0x43465331;     // "CFS1"
+    public static final int VERSION = 3;
+    public static final int SIZE = 72;              // Bytes used inside the first block
+    public static final int INODE_SIZE = 128;       // Bytes per inode record
+    public static final int EXTENT_LINK_SIZE = 8;   // Bytes per extent table entry, one entry per block
+                                                    // (handed out in runs per file on deduplicated volumes)
+    public static final int FINGERPRINT_SIZE = 32;  // SHA-256 of a data block, one per block on deduplicated volumes
+    public static final int FLAG_DEDUP = 1;         // Blocks are shared between files with the same contents
+    private static final int MIN_JOURNAL_SIZE = 64 * 1024;
+    private static final int MAX_JOURNAL_SIZE = 16 * 1024 * 1024;
+
+    private final int blockSize;
+    private final int blockCount;
+    private final int maxFiles;
+    private final int journalSize;
+    private final int flags;
+    private final long journalOffset;
+    private final long inodeTableOffset;
+    private final long extentTableOffset;
+    private final long bitmapOffset;
+    private final long fingerprintOffset;
+    private final long dataOffset;
+
+    public Superblock(int blockSize, int blockCount, int maxFiles) {
+        this(blockSize, blockCount, maxFiles, 0);
+    }
+
+    public Superblock(int blockSize, int blockCount, int maxFiles, int flags) {
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.maxFiles = maxFiles;
+        this.flags = flags;
+        // The journal grows with the volume (1/256 of the data) so large volumes checkpoint less often
+        long dataSize = (long) blockCount * blockSize;
+        this.journalSize = (int) align(Math.max(MIN_JOURNAL_SIZE, Math.min(MAX_JOURNAL_SIZE, dataSize / 256)));
+        this.journalOffset = align(SIZE);
+        this.inodeTableOffset = journalOffset + journalSize;
+        this.extentTableOffset = inodeTableOffset + align((long) maxFiles * INODE_SIZE);
+        this.bitmapOffset = extentTableOffset + align((long) blockCount * EXTENT_LINK_SIZE);
+        this.fingerprintOffset = bitmapOffset + align(getBitmapSize());
+        this.dataOffset = fingerprintOffset
+                + (isDeduplicated() ? align((long) blockCount * FINGERPRINT_SIZE) : 0);
+    }
+
+    // Getters
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public long getJournalOffset() {
+        return journalOffset;
+    }
+
+    public int getJournalSize() {
+        return journalSize;
+    }
+
+    public long getInodeTableOffset() {
+        return inodeTableOffset;
+    }
+
+    // Entry b holds the extent that follows the extent starting at block b in the same file
+    public long getExtentTableOffset() {
+        return extentTableOffset;
+    }
+
+    public long getBitmapOffset() {
+        return bitmapOffset;
+    }
+
+    // One bit per data block
+    public int getBitmapSize() {
+        return (blockCount + 7) / 8;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isDeduplicated() {
+        return (flags & FLAG_DEDUP) != 0;
+    }
+
+    // Entry b holds the fingerprint of data block b, see isDeduplicated()
+    public long getFingerprintOffset() {
+        return fingerprintOffset;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    // Total size of the volume file
+    public long getVolumeSize() {
+        return dataOffset + (long) blockCount * blockSize;
+    }
+
+    public byte[] encode() {
+        return ByteBuffer.allocate(SIZE)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(blockSize)
+                .putInt(blockCount)
+                .putInt(maxFiles)
+                .putInt(journalSize)
+                .putLong(journalOffset)
+                .putLong(inodeTableOffset)
+                .putLong(extentTableOffset)
+                .putLong(bitmapOffset)
+                .putLong(dataOffset)
+                .putInt(flags)              // zero on volumes written before flags existed
+                .array();
+    }
+
+    // Returns null when the bytes do not hold a superblock of this version (e.g. a new or foreign file)
+    public static Superblock decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        Superblock superblock = new Superblock(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(64));
+        if (buffer.getInt() != superblock.journalSize
+                || buffer.getLong() != superblock.journalOffset
+                || buffer.getLong() != superblock.inodeTableOffset
+                || buffer.getLong() != superblock.extentTableOffset
+                || buffer.getLong() != superblock.bitmapOffset
+                || buffer.getLong() != superblock.dataOffset) {
+            return null;        // Layout does not match the geometry, not a volume we wrote
+        }
+        return superblock;
+    }
+
+    private long align(long size) {
+        return (size + blockSize - 1) / blockSize * blockSize;
+    }
+}
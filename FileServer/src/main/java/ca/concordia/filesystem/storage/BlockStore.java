@@ -0,0 +1,48 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+// Backing storage for a volume, addressed by byte position inside the volume file
+public interface BlockStore extends Closeable {
+
+    // Reads length bytes starting at position into dst[offset..]
+    void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    // Writes length bytes from src[offset..] starting at position
+    void write(long position, byte[] src, int offset, int length) throws IOException;
+
+    // Reads dst.remaining() bytes starting at position into dst, advancing its position.
+    // With a direct buffer the bytes go straight from the file, without an intermediate copy.
+    void read(long position, ByteBuffer dst) throws IOException;
+
+    // Writes src.remaining() bytes starting at position, advancing the position of src
+    void write(long position, ByteBuffer src) throws IOException;
+
+    // Starts reading dst.remaining() bytes starting at position into dst; the future completes once dst is full.
+    // Backends without asynchronous I/O read right away and return a completed future.
+    default CompletableFuture<Void> readAsync(long position, ByteBuffer dst) {
+        try {
+            read(position, dst);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Starts writing src.remaining() bytes starting at position; the future completes once all of src is written.
+    // Backends without asynchronous I/O write right away and return a completed future.
+    default CompletableFuture<Void> writeAsync(long position, ByteBuffer src) {
+        try {
+            write(position, src);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Flushes everything written so far to the underlying device
+    void force() throws IOException;
+}
@@ -0,0 +1,51 @@
+package ca.concordia.filesystem.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Reusable direct buffers for block I/O, so reading a file does not allocate memory for it.
+// Requests up to bufferSize bytes get a pooled buffer; larger ones get a one-off heap buffer,
+// which release() drops. At most maxPooled buffers are kept, the rest are left to the GC.
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Buffer with position 0 and limit size
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        if (size <= bufferSize) {
+            synchronized (this) {
+                buffer = free.poll();
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+        } else {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;                 // one-off buffer
+        }
+        synchronized (this) {
+            if (free.size() < maxPooled) {
+                free.push(buffer);
+            }
+        }
+    }
+}
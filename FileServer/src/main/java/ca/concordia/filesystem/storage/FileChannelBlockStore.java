@@ -0,0 +1,134 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+// Default storage backend using positional reads and writes (pread/pwrite).
+// No shared file pointer is involved, so concurrent readers never race on an offset.
+// Asynchronous reads and writes go through an AsynchronousFileChannel on the same file, completing on its
+// thread pool. force() covers them too: it syncs the file, whichever channel wrote to it.
+public class FileChannelBlockStore implements BlockStore {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final AsynchronousFileChannel asyncChannel;
+
+    public FileChannelBlockStore(String filename) throws IOException {
+        File newFile = new File(filename);
+        if (!newFile.exists()) {
+            newFile.createNewFile();
+        }
+        file = new RandomAccessFile(newFile, "rw");      // Open file in read-write mode
+        channel = file.getChannel();
+        asyncChannel = AsynchronousFileChannel.open(newFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        read(position, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        write(position, ByteBuffer.wrap(src, offset, length));
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                // Past the end of the file: the volume was never written this far, so it reads as zeros
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+            } else {
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> readAsync(long position, ByteBuffer dst) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        continueRead(position, dst, done);
+        return done;
+    }
+
+    // One asynchronous read, followed by another from the completion handler until dst is full
+    private void continueRead(long position, ByteBuffer dst, CompletableFuture<Void> done) {
+        if (!dst.hasRemaining()) {
+            done.complete(null);
+            return;
+        }
+        asyncChannel.read(dst, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if (n < 0) {
+                    // Past the end of the file, reads as zeros like read() does
+                    while (dst.hasRemaining()) {
+                        dst.put((byte) 0);
+                    }
+                }
+                continueRead(position + Math.max(n, 0), dst, done);
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                done.completeExceptionally(error);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(long position, ByteBuffer src) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        continueWrite(position, src, done);
+        return done;
+    }
+
+    // One asynchronous write, followed by another from the completion handler until src is written
+    private void continueWrite(long position, ByteBuffer src, CompletableFuture<Void> done) {
+        if (!src.hasRemaining()) {
+            done.complete(null);
+            return;
+        }
+        asyncChannel.write(src, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                continueWrite(position + n, src, done);
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                done.completeExceptionally(error);
+            }
+        });
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        asyncChannel.close();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,117 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Storage backend that maps the whole volume file into memory.
+// A single mapping is limited to 2 GB, so the volume is split into fixed-size regions
+// and a read or write that crosses a region boundary is split in two.
+public class MappedBlockStore implements BlockStore {
+
+    private static final int REGION_SHIFT = 30;                 // 1 GB regions
+    private static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final long capacity;
+
+    public MappedBlockStore(String filename, long capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        File newFile = new File(filename);
+        if (!newFile.exists()) {
+            newFile.createNewFile();
+        }
+        this.file = new RandomAccessFile(newFile, "rw");
+        this.channel = file.getChannel();
+        this.capacity = capacity;
+
+        int count = (int) ((capacity + REGION_SIZE - 1) / REGION_SIZE);
+        regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * REGION_SIZE;
+            long size = Math.min(REGION_SIZE, capacity - start);
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);  // grows the file if needed
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+            int index = (int) (position & (REGION_SIZE - 1));
+            int chunk = Math.min(length, region.capacity() - index);
+            region.get(index, dst, offset, chunk);          // absolute get, safe for concurrent readers
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+            int index = (int) (position & (REGION_SIZE - 1));
+            int chunk = Math.min(length, region.capacity() - index);
+            region.put(index, src, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        checkBounds(position, dst.remaining());
+        while (dst.hasRemaining()) {
+            MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+            int index = (int) (position & (REGION_SIZE - 1));
+            int chunk = Math.min(dst.remaining(), region.capacity() - index);
+            dst.put(dst.position(), region, index, chunk);  // absolute on the region, safe for concurrent readers
+            dst.position(dst.position() + chunk);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        checkBounds(position, src.remaining());
+        while (src.hasRemaining()) {
+            MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+            int index = (int) (position & (REGION_SIZE - 1));
+            int chunk = Math.min(src.remaining(), region.capacity() - index);
+            region.put(index, src, src.position(), chunk);
+            src.position(src.position() + chunk);
+            position += chunk;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+        file.close();
+    }
+
+    private void checkBounds(long position, int length) throws IOException {
+        if (position < 0 || position + length > capacity) {
+            throw new IOException("Access outside of the mapped volume.");
+        }
+    }
+}
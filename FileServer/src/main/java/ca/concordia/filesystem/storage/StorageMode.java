@@ -0,0 +1,19 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+
+// Selects how the volume file is accessed by FileSystemManager
+public enum StorageMode {
+    FILE_CHANNEL,   // positional read/write on a FileChannel
+    MEMORY_MAPPED;  // volume mapped into memory, block I/O is a plain copy
+
+    public BlockStore open(String filename, long capacity) throws IOException {
+        switch (this) {
+            case MEMORY_MAPPED:
+                return new MappedBlockStore(filename, capacity);
+            case FILE_CHANNEL:
+            default:
+                return new FileChannelBlockStore(filename);
+        }
+    }
+}
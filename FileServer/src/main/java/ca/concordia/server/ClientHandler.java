@@ -1,23 +1,33 @@
 package ca.concordia.server;
+import ca.concordia.filesystem.BatchOp;
+import ca.concordia.filesystem.ChunkConsumer;
 import ca.concordia.filesystem.FileSystemManager;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.nio.charset.StandardCharsets;
 
 public class ClientHandler implements Runnable {
     // Create a thread of type CLientHandler
     // Thread calls run method when threadname.start() is called
 
+    private static final int MAX_BATCH_OPS = 10000;   // one BATCH frame is read whole before it is applied
+
     private final Socket clientSocket;
-    private final FileSystemManager fsManager;
+    private final VolumeRegistry volumes;   // file names may start with "volume:", see VolumeRegistry
 
-    public ClientHandler(Socket clientSocket, FileSystemManager fsManager) {
+    public ClientHandler(Socket clientSocket, VolumeRegistry volumes) {
         this.clientSocket = clientSocket;
-        this.fsManager = fsManager;
+        this.volumes = volumes;
     }
 
     // code execute by the thread
@@ -27,6 +37,8 @@ public class ClientHandler implements Runnable {
                 BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
         ) {
+            // raw file bytes go through this, after flushing whatever the writer holds
+            WritableByteChannel socketChannel = Channels.newChannel(clientSocket.getOutputStream());
             // Optionally remove this println; Only to test if thread is created and runs as expected
             System.out.println("Client Thread running");
             String line;
@@ -37,7 +49,7 @@ public class ClientHandler implements Runnable {
 
                 switch (command) {
                     case "CREATE":
-                        fsManager.createFile(parts[1]);
+                        volumes.volumeOf(parts[1]).createFile(VolumeRegistry.fileNameOf(parts[1]));
                         writer.println("SUCCESS: File '" + parts[1] + "' created.");
                         writer.flush();
                         break;
@@ -46,19 +58,50 @@ public class ClientHandler implements Runnable {
                     // implement synchronization (lock or semaphore)
                     // parts[1] should represent file name
                     case "READ":
-                        // data is an array of bytes, representing the raw contents of the file being passed
-                        // do if parts[1] is not null
+                        // the file is streamed to the socket chunk by chunk, it is never held in memory whole.
+                        // The reply is "CONTENTS <length>: " and then exactly that many bytes, so a client
+                        // can tell when the data stops short.
+                        if (parts.length != 2 && parts.length != 4) {
+                            writer.println("ERROR: READ requires filename, or filename offset length");
+                            break;
+                        }
                         if (parts[1] != null){
+                            boolean[] started = {false};
                             try{
-                                byte[] data =  fsManager.readFile(parts[1]);
-                                writer.println("CONTENTS: " + new String(data));
+                                // READ <file> <offset> <len> returns only that range
+                                long offset = parts.length == 4 ? Long.parseLong(parts[2]) : 0;
+                                long length = parts.length == 4 ? Long.parseLong(parts[3]) : Long.MAX_VALUE;
+                                FileSystemManager fsManager = volumes.volumeOf(parts[1]);
+                                fsManager.streamFile(VolumeRegistry.fileNameOf(parts[1]), offset, length, new ChunkConsumer() {
+                                    @Override
+                                    public void start(long count) {
+                                        writer.print("CONTENTS " + count + ": ");
+                                        writer.flush();
+                                        started[0] = true;
+                                    }
+
+                                    @Override
+                                    public void accept(ByteBuffer chunk) throws IOException {
+                                        while (chunk.hasRemaining()) {
+                                            socketChannel.write(chunk);
+                                        }
+                                    }
+                                });
+                                writer.println();
                             } catch (Exception e){
+                                if (started[0]) {
+                                    // part of the data is already sent: end its line, report the error and hang up,
+                                    // since the client would otherwise take the rest of the reply as the data
+                                    writer.println();
+                                    writer.println("ERROR: " + e.getMessage());
+                                    return;
+                                }
                                 writer.println("ERROR: " + e.getMessage());
                             }
                         }
                         break;
                     case "DELETE":
-                        if (parts[1] != null) fsManager.deleteFile(parts[1]);
+                        if (parts[1] != null) volumes.volumeOf(parts[1]).deleteFile(VolumeRegistry.fileNameOf(parts[1]));
                         writer.println("SUCCESS: File '" + parts[1] + "' deleted.");
                         break;
                     case "WRITE":
@@ -73,16 +116,115 @@ public class ClientHandler implements Runnable {
                         String contents = args[2];
                         byte[] data = contents.getBytes(StandardCharsets.UTF_8);
                         try {
-                            fsManager.writeFile(parts[1], data);
+                            volumes.volumeOf(parts[1]).writeFile(VolumeRegistry.fileNameOf(parts[1]), data);
                             writer.println("SUCCESS: File '" + parts[1] + "' written.");
                         } catch (Exception e){
                             writer.println("ERROR: " + e.getMessage());
                         }
                         break;
+                    case "APPEND":
+                        // same form as WRITE, the data is added at the end of the file
+                        String[] appendArgs = line.split("\\s+", 3);
+                        if (appendArgs.length < 3) {
+                            writer.println("ERROR: APPEND requires filename and data");
+                            break;
+                        }
+                        try {
+                            volumes.volumeOf(appendArgs[1]).appendFile(VolumeRegistry.fileNameOf(appendArgs[1]), appendArgs[2].getBytes(StandardCharsets.UTF_8));
+                            writer.println("SUCCESS: File '" + appendArgs[1] + "' appended.");
+                        } catch (Exception e){
+                            writer.println("ERROR: " + e.getMessage());
+                        }
+                        break;
+                    case "WRITEAT":
+                        // WRITEAT <file> <offset> <data> overwrites the file from offset on
+                        String[] writeAtArgs = line.split("\\s+", 4);
+                        if (writeAtArgs.length < 4) {
+                            writer.println("ERROR: WRITEAT requires filename, offset and data");
+                            break;
+                        }
+                        try {
+                            volumes.volumeOf(writeAtArgs[1]).writeAt(VolumeRegistry.fileNameOf(writeAtArgs[1]), Long.parseLong(writeAtArgs[2]),
+                                    writeAtArgs[3].getBytes(StandardCharsets.UTF_8));
+                            writer.println("SUCCESS: File '" + writeAtArgs[1] + "' written.");
+                        } catch (Exception e){
+                            writer.println("ERROR: " + e.getMessage());
+                        }
+                        break;
+                    case "BATCH":
+                        // BATCH <n> followed by n lines of CREATE, WRITE, APPEND or DELETE, applied together.
+                        // Replies with a summary line, then one OK or ERROR line per operation.
+                        // A batch is one transaction, so all of its files must be on the same volume.
+                        int count;
+                        try {
+                            count = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+                        } catch (NumberFormatException e) {
+                            count = 0;
+                        }
+                        if (count < 1 || count > MAX_BATCH_OPS) {
+                            writer.println("ERROR: BATCH requires a count of 1 to " + MAX_BATCH_OPS + " operations");
+                            break;
+                        }
+                        try {
+                            List<BatchOp> ops = new ArrayList<>();
+                            String[] parseErrors = new String[count];
+                            FileSystemManager batchVolume = null;
+                            for (int i = 0; i < count; i++) {
+                                String opLine = reader.readLine();
+                                if (opLine == null) {
+                                    return;             // client gone mid-frame, nothing of it is applied
+                                }
+                                BatchOp op = parseBatchOp(opLine);
+                                if (op == null) {
+                                    parseErrors[i] = "Unknown command.";
+                                    continue;
+                                }
+                                FileSystemManager opVolume;
+                                try {
+                                    opVolume = volumes.volumeOf(op.getFileName());
+                                } catch (Exception e) {
+                                    parseErrors[i] = e.getMessage();
+                                    continue;
+                                }
+                                if (batchVolume == null) {
+                                    batchVolume = opVolume;
+                                }
+                                if (opVolume != batchVolume) {
+                                    parseErrors[i] = "Batch spans several volumes.";
+                                } else {
+                                    ops.add(withFileName(op, VolumeRegistry.fileNameOf(op.getFileName())));
+                                }
+                            }
+                            List<String> results = batchVolume == null ? List.of() : batchVolume.applyBatch(ops);
+                            int failed = 0;
+                            List<String> replies = new ArrayList<>();
+                            for (int i = 0, next = 0; i < count; i++) {
+                                String error = parseErrors[i] != null ? parseErrors[i] : results.get(next++);
+                                if (error != null) {
+                                    failed++;
+                                }
+                                replies.add(error == null ? "OK" : "ERROR: " + error);
+                            }
+                            writer.println("SUCCESS: Batch of " + count + " operations applied, " + failed + " failed.");
+                            for (String reply : replies) {
+                                writer.println(reply);
+                            }
+                        } catch (Exception e) {
+                            writer.println("ERROR: " + e.getMessage());
+                        }
+                        break;
                     case "LIST":
-                        String[] lsFiles = null;
-                        lsFiles = fsManager.listFiles();
-                        writer.println("SUCCESS: List of Files: " + Arrays.toString(lsFiles));
+                        // LIST <volume> lists another volume than the default one
+                        try {
+                            String[] lsFiles = null;
+                            lsFiles = volumes.volumeOf(parts.length > 1 ? parts[1] + VolumeRegistry.SEPARATOR : "").listFiles();
+                            writer.println("SUCCESS: List of Files: " + Arrays.toString(lsFiles));
+                        } catch (Exception e) {
+                            writer.println("ERROR: " + e.getMessage());
+                        }
+                        break;
+                    case "VOLUMES":
+                        writer.println("SUCCESS: Volumes: " + Arrays.toString(volumes.names()));
                         break;
                     case "QUIT":
                         writer.println("SUCCESS: Disconnecting.");
@@ -102,4 +244,41 @@ public class ClientHandler implements Runnable {
             }
         }
     }
+
+    // One line of a BATCH frame, null if it is not an operation a batch can hold
+    private static BatchOp parseBatchOp(String line) {
+        String[] args = line.split("\\s+", 3);
+        if (args.length < 2) {
+            return null;
+        }
+        switch (args[0].toUpperCase()) {
+            case "CREATE":
+                return BatchOp.create(args[1]);
+            case "DELETE":
+                return BatchOp.delete(args[1]);
+            case "WRITE":
+            case "APPEND":
+                if (args.length < 3) {
+                    return null;
+                }
+                byte[] data = args[2].getBytes(StandardCharsets.UTF_8);
+                return args[0].equalsIgnoreCase("WRITE") ? BatchOp.write(args[1], data) : BatchOp.append(args[1], data);
+            default:
+                return null;
+        }
+    }
+
+    // The same operation on the file's name within its volume
+    private static BatchOp withFileName(BatchOp op, String fileName) {
+        switch (op.getType()) {
+            case CREATE:
+                return BatchOp.create(fileName);
+            case WRITE:
+                return BatchOp.write(fileName, op.getData());
+            case APPEND:
+                return BatchOp.append(fileName, op.getData());
+            default:
+                return BatchOp.delete(fileName);
+        }
+    }
 }
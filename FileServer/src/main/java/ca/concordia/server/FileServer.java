@@ -1,5 +1,5 @@
 package ca.concordia.server;
-import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -11,13 +11,25 @@ import java.util.*;
 
 public class FileServer {
 
-    private FileSystemManager fsManager;
+    public static final String DEFAULT_VOLUME = "main";
+
+    private VolumeRegistry volumes;
     private int port;
-    public FileServer(int port, String fileSystemName, int totalSize) throws IOException {
-        // Initialize the FileSystemManager
-        FileSystemManager fsManager = new FileSystemManager(fileSystemName,
-                10*128 );
-        this.fsManager = fsManager;
+    public FileServer(int port, String fileSystemName, long totalSize) throws IOException {
+        this(port, fileSystemName, new FileSystemOptions(totalSize));
+    }
+
+    public FileServer(int port, String fileSystemName, FileSystemOptions options) throws IOException {
+        // Initialize the FileSystemManager, served as the only (default) volume
+        VolumeRegistry volumes = new VolumeRegistry();
+        volumes.mount(DEFAULT_VOLUME, fileSystemName, options);
+        this.volumes = volumes;
+        this.port = port;
+    }
+
+    // Serve volumes mounted by the caller, e.g. one per disk
+    public FileServer(int port, VolumeRegistry volumes) {
+        this.volumes = volumes;
         this.port = port;
     }
 
@@ -26,14 +38,14 @@ public class FileServer {
     public void start(){
         //sets up server connection
         // correct port assignment later on (like this.port instead of hardcoded value or 3000)
-        try (ServerSocket serverSocket = new ServerSocket(12345)) {
-            System.out.println("Server started. Listening on port 12345...");
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Server started. Listening on port " + port + "...");
 
             //loop currently handles one client
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Handling client: " + clientSocket);
-                ClientHandler clientHandler = new ClientHandler(clientSocket, fsManager);
+                ClientHandler clientHandler = new ClientHandler(clientSocket, volumes);
                 //create thread for each client
                 //calls Overridden run function in FileServer.java
                 new Thread(clientHandler).start();
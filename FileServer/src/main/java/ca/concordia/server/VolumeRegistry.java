@@ -0,0 +1,80 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The volumes served by one server process, each an independent FileSystemManager with its own
+// backing file and locks, so operations on different volumes never wait on each other.
+// Clients name a file of another volume as "volume:file"; a name without a prefix is on the
+// first volume mounted, the default one.
+public class VolumeRegistry implements Closeable {
+
+    public static final char SEPARATOR = ':';
+
+    // Looked up by every command without locking, mounting and closing are synchronized
+    private final Map<String, FileSystemManager> volumes = new ConcurrentHashMap<>();
+    private volatile String defaultVolume;
+
+    // Mount a volume under a name, creating its backing file if needed
+    public synchronized FileSystemManager mount(String name, String fileSystemName, FileSystemOptions options)
+            throws IOException {
+        if (name.isEmpty() || name.indexOf(SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid volume name: " + name);
+        }
+        if (volumes.containsKey(name)) {
+            throw new IllegalArgumentException("Volume already mounted: " + name);
+        }
+        FileSystemManager fs = new FileSystemManager(fileSystemName, options);
+        volumes.put(name, fs);
+        if (defaultVolume == null) {
+            defaultVolume = name;
+        }
+        return fs;
+    }
+
+    // Volume a client path refers to
+    public FileSystemManager volumeOf(String path) throws Exception {
+        int separator = path.indexOf(SEPARATOR);
+        String name = separator < 0 ? defaultVolume : path.substring(0, separator);
+        FileSystemManager fs = name == null ? null : volumes.get(name);
+        if (fs == null) {
+            throw new Exception("Volume not found.");
+        }
+        return fs;
+    }
+
+    // File name within its volume
+    public static String fileNameOf(String path) {
+        return path.substring(path.indexOf(SEPARATOR) + 1);
+    }
+
+    public String[] names() {
+        String[] names = volumes.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    // Unmount every volume
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (FileSystemManager fs : volumes.values()) {
+            try {
+                fs.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        volumes.clear();
+        defaultVolume = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
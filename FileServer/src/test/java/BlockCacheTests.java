@@ -0,0 +1,70 @@
+import ca.concordia.filesystem.datastructures.BlockCache;
+import org.junit.jupiter.api.*;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockCacheTests {
+
+    private static byte[] block(int value) {
+        byte[] data = new byte[16];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    void testHitAfterPutAndMissAfterInvalidate() {
+        BlockCache cache = new BlockCache(4, 16);
+        byte[] out = new byte[20];
+        assertFalse(cache.read(7, out, 0, 20));
+        byte[] run = new byte[20];
+        Arrays.fill(run, (byte) 3);
+        cache.put(7, run, 0, 20);                   // two blocks, the second one partly used
+        assertTrue(cache.read(7, out, 0, 20));
+        assertArrayEquals(run, out);
+        cache.invalidate(8, 1);
+        assertFalse(cache.read(7, out, 0, 20));     // runs are all or nothing
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void testUpdateOnlyRefreshesCachedBlocks() {
+        BlockCache cache = new BlockCache(4, 16);
+        cache.put(1, block(1), 0, 16);
+        cache.update(1, block(9), 0, 16);
+        cache.update(2, block(9), 0, 16);
+        byte[] out = new byte[16];
+        assertTrue(cache.read(1, out, 0, 16));
+        assertArrayEquals(block(9), out);
+        assertFalse(cache.read(2, out, 0, 16));
+    }
+
+    @Test
+    void testScanDoesNotEvictHotBlocks() {
+        BlockCache cache = new BlockCache(4, 16);
+        byte[] out = new byte[16];
+        cache.put(0, block(0), 0, 16);
+        cache.put(1, block(1), 0, 16);
+        for (int block = 100; block < 110; block++) {
+            assertTrue(cache.read(0, out, 0, 16));  // 0 and 1 stay hot while blocks are read once
+            assertTrue(cache.read(1, out, 0, 16));
+            cache.put(block, block(block), 0, 16);
+        }
+        assertEquals(8, cache.getEvictions());      // only scanned blocks were evicted
+    }
+
+    @Test
+    void testNewBlockIsEvictedBeforeReferencedOne() {
+        BlockCache cache = new BlockCache(2, 16);
+        byte[] out = new byte[16];
+        cache.put(0, block(0), 0, 16);
+        assertTrue(cache.read(0, out, 0, 16));
+        cache.put(1, block(1), 0, 16);
+        cache.put(2, block(2), 0, 16);              // 1 was never hit, it goes first
+        assertTrue(cache.read(0, out, 0, 16));
+        assertFalse(cache.read(1, out, 0, 16));
+        assertTrue(cache.read(2, out, 0, 16));
+    }
+}
@@ -0,0 +1,42 @@
+import ca.concordia.filesystem.datastructures.DedupIndex;
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DedupIndexTests {
+
+    private static ByteBuffer fingerprint(int n) {
+        return ByteBuffer.wrap(ByteBuffer.allocate(32).putInt(n).array());
+    }
+
+    @Test
+    void testSharedBlockIsFreedWithTheLastReference() {
+        DedupIndex index = new DedupIndex(10);
+        index.reference(4);
+        index.index(4, fingerprint(1));
+        assertEquals(4, index.find(fingerprint(1)));    // found by contents, not by the same buffer
+        index.reference(4);
+        assertEquals(2, index.getLogicalBlocks());
+        assertEquals(1, index.getPhysicalBlocks());
+
+        assertFalse(index.release(4));
+        assertEquals(4, index.find(fingerprint(1)));
+        assertTrue(index.release(4));
+        assertEquals(-1, index.find(fingerprint(1)));
+        assertEquals(0, index.getPhysicalBlocks());
+    }
+
+    @Test
+    void testFirstBlockWithContentsStaysIndexed() {
+        DedupIndex index = new DedupIndex(10);
+        index.reference(1);
+        index.index(1, fingerprint(7));
+        index.reference(2);
+        index.index(2, fingerprint(7));                 // same contents stored twice, the first one is kept
+        assertEquals(1, index.find(fingerprint(7)));
+        assertTrue(index.release(2));
+        assertEquals(1, index.find(fingerprint(7)));
+    }
+}
@@ -0,0 +1,42 @@
+import ca.concordia.filesystem.datastructures.Extent;
+import ca.concordia.filesystem.datastructures.FEntry;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FEntryTests {
+
+    @Test
+    void testSizeIsNotLimitedToAShort() {
+        FEntry entry = new FEntry("big", 0);
+        entry.setFilesize(5L << 30);
+        assertEquals(5L << 30, entry.getFilesize());
+    }
+
+    @Test
+    void testFindExtentMapsFileBlocks() {
+        FEntry entry = new FEntry("frag", 0);
+        for (int i = 0; i < 10_000; i++) {
+            entry.addBlocks(i * 10, 3);         // never contiguous, one extent per call
+        }
+        assertEquals(10_000, entry.getExtents().size());
+        assertEquals(30_000, entry.getBlockCount());
+        assertEquals(0, entry.findExtent(0));
+        assertEquals(0, entry.findExtent(2));
+        assertEquals(1, entry.findExtent(3));
+        assertEquals(4_567, entry.findExtent(4_567 * 3 + 1));
+        assertEquals(9_999, entry.findExtent(29_999));
+        assertEquals(10_000, entry.findExtent(30_000));     // past the end
+
+        entry.addBlocks(99_993, 5);             // follows the last extent, which grows
+        assertEquals(10_000, entry.getExtents().size());
+        assertEquals(9_999, entry.findExtent(30_004));
+
+        entry.replaceExtents(List.of(new Extent(7, 4), new Extent(50, 2)));
+        assertEquals(6, entry.getBlockCount());
+        assertEquals(4, entry.getExtentFirstBlock(1));
+        assertEquals(1, entry.findExtent(5));
+    }
+}
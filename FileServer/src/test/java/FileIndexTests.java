@@ -0,0 +1,47 @@
+import ca.concordia.filesystem.datastructures.FileIndex;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileIndexTests {
+
+    @Test
+    void testPutGetRemove() {
+        FileIndex index = new FileIndex(5);
+        index.put("a.txt", 0);
+        index.put("b.txt", 3);
+        assertEquals(0, index.get("a.txt"));
+        assertEquals(3, index.get("b.txt"));
+        assertEquals(-1, index.get("c.txt"));
+        index.remove("a.txt");
+        assertEquals(-1, index.get("a.txt"));
+        assertEquals(3, index.get("b.txt"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testRemoveKeepsOtherEntriesReachable() {
+        FileIndex index = new FileIndex(16);        // grows past its initial capacity below
+        for (int i = 0; i < 5000; i++) {
+            index.put("file" + i, i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            index.remove("file" + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, index.get("file" + i));
+        }
+    }
+
+    @Test
+    void testNamesAreSortedAndFollowChanges() {
+        FileIndex index = new FileIndex(4);
+        index.put("b", 1);
+        index.put("a", 0);
+        assertArrayEquals(new String[]{"a", "b"}, index.names());
+        index.names()[0] = "z";                     // a copy, the index is not affected
+        index.put("c", 2);
+        index.remove("a");
+        assertArrayEquals(new String[]{"b", "c"}, index.names());
+    }
+}
@@ -1,13 +1,41 @@
+import ca.concordia.filesystem.AllocationStats;
+import ca.concordia.filesystem.BatchOp;
+import ca.concordia.filesystem.ChunkConsumer;
+import ca.concordia.filesystem.CompactionStats;
+import ca.concordia.filesystem.DedupStats;
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
+import ca.concordia.filesystem.PooledBuffer;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class FileSystemTests {
     static FileSystemManager fs;
 
+    @TempDir
+    Path dir;                                   // tests needing their own volume open it here, see openVolume()
+
     @BeforeAll
     static void setup() throws Exception {
+        new File("testfs.dat").delete();        // the volume persists between runs, start from an empty one
         fs = new FileSystemManager("testfs.dat", 10 * 128);
     }
 
@@ -54,4 +82,509 @@ public class FileSystemTests {
             assertNotEquals("b.txt", fileName);
         }
     }
+
+    @Test
+    void testFragmentedFileReadsBack() throws Exception {
+        fs.createFile("frag1");
+        fs.createFile("frag2");
+        fs.writeFile("frag1", "x".getBytes());
+        fs.writeFile("frag2", "y".getBytes());
+        fs.deleteFile("frag1");             // leaves a one-block hole before frag2
+
+        fs.createFile("frag3");
+        String content = "0123456789".repeat(30);
+        fs.writeFile("frag3", content.getBytes());
+        assertEquals(content, new String(fs.readFile("frag3")));
+        assertEquals("y", new String(fs.readFile("frag2")));
+
+        fs.deleteFile("frag2");
+        fs.deleteFile("frag3");
+    }
+
+    @Test
+    void testRewriteFreesAllBlocks() throws Exception {
+        fs.createFile("rewrite");
+        String content = "z".repeat(3 * 128);
+        for (int i = 0; i < 5; i++) {
+            fs.writeFile("rewrite", content.getBytes());
+        }
+        assertEquals(content, new String(fs.readFile("rewrite")));
+        fs.deleteFile("rewrite");
+    }
+
+    @Test
+    void testMetadataChangesAreJournaled() throws Exception {
+        long before = fs.getJournalStats().getTransactions();
+        fs.createFile("journal");
+        fs.writeFile("journal", "logged".getBytes());
+        fs.deleteFile("journal");
+        // each change is durable when it returns; the freeing of the blocks may still wait for a later flush
+        assertTrue(fs.getJournalStats().getTransactions() >= before + 3);
+    }
+
+    @Test
+    void testConcurrentWritesToDifferentFiles() throws Exception {
+        fs.createFile("par1");
+        fs.createFile("par2");
+        Thread[] writers = new Thread[2];
+        Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < writers.length; t++) {
+            String name = "par" + (t + 1);
+            byte[] content = String.valueOf(t).repeat(100).getBytes();
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        fs.writeFile(name, content);
+                        assertArrayEquals(content, fs.readFile(name));
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure[0]);
+        assertEquals("1".repeat(100), new String(fs.readFile("par2")));
+        fs.deleteFile("par1");
+        fs.deleteFile("par2");
+    }
+
+    @Test
+    void testListingIsASnapshot() throws Exception {
+        String[] before = fs.listFiles();
+        assertArrayEquals(before, fs.listFiles());   // nothing changed
+        if (before.length > 0) {
+            before[0] = "changed";                  // the caller's own copy
+            assertNotEquals("changed", fs.listFiles()[0]);
+            before = fs.listFiles();
+        }
+        fs.createFile("snap");
+        String[] after = fs.listFiles();
+        assertEquals(before.length + 1, after.length);
+        assertTrue(Arrays.asList(after).contains("snap"));
+        assertFalse(Arrays.asList(before).contains("snap"));
+        fs.deleteFile("snap");
+        assertFalse(Arrays.asList(fs.listFiles()).contains("snap"));
+    }
+
+    @Test
+    void testRepeatedReadsHitTheCache() throws Exception {
+        fs.createFile("hot");
+        fs.writeFile("hot", "cached".getBytes());
+        fs.readFile("hot");
+        long hits = fs.getCacheStats().getHits();
+        assertEquals("cached", new String(fs.readFile("hot")));
+        assertEquals(hits + 1, fs.getCacheStats().getHits());
+        fs.writeFile("hot", "fresh".getBytes());    // the old blocks are dropped from the cache
+        assertEquals("fresh", new String(fs.readFile("hot")));
+        fs.deleteFile("hot");
+    }
+
+    @Test
+    void testReadIntoPooledBuffer() throws Exception {
+        fs.createFile("pooled");
+        String content = "pooled buffer ".repeat(20);
+        fs.writeFile("pooled", content.getBytes());
+        try (PooledBuffer contents = fs.readFileBuffer("pooled")) {
+            byte[] data = new byte[contents.buffer().remaining()];
+            contents.buffer().get(data);
+            assertEquals(content, new String(data));
+        }
+        fs.deleteFile("pooled");
+    }
+
+    @Test
+    void testAppendAddsToTheEnd() throws Exception {
+        fs.createFile("log");
+        fs.appendFile("log", "first ".getBytes());            // empty file, new block
+        String entry = "0123456789".repeat(20);
+        fs.appendFile("log", entry.getBytes());               // fills the tail block, then new blocks
+        fs.appendFile("log", "!".getBytes());
+        assertEquals("first " + entry + "!", new String(fs.readFile("log")));
+        fs.deleteFile("log");
+    }
+
+    @Test
+    void testRangedReadAndWriteAt() throws Exception {
+        fs.createFile("paged");
+        String content = "abcdefghij".repeat(30);          // 300 bytes, three blocks
+        fs.writeFile("paged", content.getBytes());
+        assertEquals(content.substring(120, 140), new String(fs.readFile("paged", 120, 20)));
+        assertEquals(content.substring(290), new String(fs.readFile("paged", 290, 50)));   // cut at the end
+
+        fs.writeAt("paged", 125, "XYZ".getBytes());          // inside the second block
+        fs.writeAt("paged", 298, "1234".getBytes());         // grows the file by two bytes
+        String expected = content.substring(0, 125) + "XYZ" + content.substring(128, 298) + "1234";
+        assertEquals(expected, new String(fs.readFile("paged")));
+        assertThrows(Exception.class, () -> fs.readFile("paged", 400, 1));
+        fs.deleteFile("paged");
+    }
+
+    @Test
+    void testStreamFileInChunks() throws Exception {
+        fs.createFile("stream");
+        String content = "streamed ".repeat(40);
+        fs.writeFile("stream", content.getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fs.streamFile("stream", chunk -> {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            out.write(bytes);
+        });
+        assertEquals(content, out.toString());
+        fs.deleteFile("stream");
+    }
+
+    @Test
+    void testStreamAnnouncesLengthFirst() throws Exception {
+        fs.createFile("announced");
+        fs.writeFile("announced", "0123456789".getBytes());
+        long[] announced = {-1};
+        long[] received = {0};
+        fs.streamFile("announced", 3, 100, new ChunkConsumer() {
+            @Override
+            public void start(long length) {
+                assertEquals(0, received[0]);       // before any data
+                announced[0] = length;
+            }
+
+            @Override
+            public void accept(ByteBuffer chunk) {
+                received[0] += chunk.remaining();
+            }
+        });
+        assertEquals(7, announced[0]);
+        assertEquals(7, received[0]);
+        fs.streamFile("announced", 10, 5, new ChunkConsumer() {
+            @Override
+            public void start(long length) {
+                announced[0] = length;
+            }
+
+            @Override
+            public void accept(ByteBuffer chunk) {
+                fail("Empty range has no chunks");
+            }
+        });
+        assertEquals(0, announced[0]);
+        fs.deleteFile("announced");
+    }
+
+    @Test
+    void testReadersSeeWholeVersionsDuringRewrite() throws Exception {
+        fs.createFile("cow");
+        String first = "1".repeat(200);
+        String second = "2".repeat(200);
+        fs.writeFile("cow", first.getBytes());
+        Throwable[] failure = new Throwable[1];
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    String seen = new String(fs.readFile("cow"));
+                    assertTrue(seen.equals(first) || seen.equals(second));
+                }
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 50; i++) {
+            fs.writeFile("cow", (i % 2 == 0 ? second : first).getBytes());
+        }
+        reader.join();
+        assertNull(failure[0]);
+
+        // a rewrite that cannot be done leaves the old version in place
+        assertThrows(Exception.class, () -> fs.writeFile("cow", new byte[10 * 128]));
+        assertEquals(first, new String(fs.readFile("cow")));
+        fs.deleteFile("cow");
+    }
+
+    @Test
+    void testBatchReportsEachOperation() throws Exception {
+        long commits = fs.getJournalStats().getCommits();
+        List<String> results = fs.applyBatch(List.of(
+                BatchOp.create("bat1"),
+                BatchOp.write("bat1", "one".getBytes()),
+                BatchOp.append("bat1", "+two".getBytes()),
+                BatchOp.write("missing", "x".getBytes()),
+                BatchOp.create("bat2")));
+        assertNull(results.get(0));
+        assertNull(results.get(1));
+        assertNull(results.get(2));
+        assertEquals("File not found.", results.get(3));
+        assertNull(results.get(4));
+        assertEquals("one+two", new String(fs.readFile("bat1")));
+        assertTrue(fs.getJournalStats().getCommits() - commits <= 2);   // the batch, then the freed old blocks
+
+        results = fs.applyBatch(List.of(BatchOp.delete("bat1"), BatchOp.delete("bat2")));
+        assertNull(results.get(0));
+        assertNull(results.get(1));
+        assertFalse(Arrays.asList(fs.listFiles()).contains("bat1"));
+    }
+
+    @Test
+    void testBatchLargerThanTheJournal() throws Exception {
+        // The smallest journal is 64 KB, 1600 operations on one block files need several times that
+        List<BatchOp> ops = new ArrayList<>();
+        for (int i = 0; i < 800; i++) {
+            ops.add(BatchOp.create("big" + i));
+            ops.add(BatchOp.write("big" + i, ("contents of " + i).getBytes()));
+        }
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(4096 * 128).maxFiles(1000))) {
+            long transactions = volume.getJournalStats().getTransactions();
+            List<String> results = volume.applyBatch(ops);
+            assertEquals(ops.size(), results.size());
+            assertTrue(results.stream().allMatch(result -> result == null));
+            assertEquals(0, volume.getJournalStats().getUnjournaled());     // every record fit, none lost atomicity
+            assertTrue(volume.getJournalStats().getTransactions() - transactions >= 2);
+        }
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(4096 * 128).maxFiles(1000))) {
+            assertEquals(800, volume.listFiles().length);
+            assertEquals("contents of 799", new String(volume.readFile("big799")));
+        }
+    }
+
+    @Test
+    void testAsyncRoundTrip() throws Exception {
+        fs.createFileAsync("async").get();
+        fs.writeFileAsync("async", "hello async".getBytes()).get();
+        fs.appendFileAsync("async", "!".getBytes()).get();
+
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            reads.add(fs.readFileAsync("async"));
+        }
+        for (CompletableFuture<byte[]> read : reads) {
+            assertEquals("hello async!", new String(read.get()));
+        }
+        assertEquals("async", new String(fs.readFileAsync("async", 6, 5).get()));
+
+        fs.deleteFileAsync("async").get();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> fs.readFileAsync("async").get());
+        assertEquals("File not found.", ex.getCause().getMessage());
+    }
+
+    @Test
+    void testAsyncChangesDoNotHoldAThreadUntilDurable() throws Exception {
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(1024 * 128).maxFiles(64).asyncThreads(1))) {
+            for (int i = 0; i < 32; i++) {
+                volume.createFile("a" + i);
+            }
+            long commits = volume.getJournalStats().getCommits();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                writes.add(volume.writeFileAsync("a" + i, ("version " + i).getBytes()));
+            }
+            for (CompletableFuture<Void> write : writes) {
+                write.get(5, TimeUnit.SECONDS);
+            }
+            // the only pool thread waiting for each write's flush would make it one flush per write
+            assertTrue(volume.getJournalStats().getCommits() - commits < 32);
+            assertEquals("version 7", new String(volume.readFileAsync("a7").get()));
+        }
+    }
+
+    @Test
+    void testForeignFileIsNotFormattedOver() throws Exception {
+        byte[] contents = new byte[200 * 1024];
+        Arrays.fill(contents, (byte) 'J');
+        Path foreign = dir.resolve("volume.dat");
+        Files.write(foreign, contents);
+        assertThrows(IOException.class, () -> openVolume(new FileSystemOptions(64 * 128)));
+        assertArrayEquals(contents, Files.readAllBytes(foreign));
+    }
+
+    @Test
+    void testFilesLargerThan32KB() throws Exception {
+        try (FileSystemManager large = openVolume(new FileSystemOptions(4 << 20).blockSize(512))) {
+            byte[] data = new byte[1 << 20];
+            new Random(3).nextBytes(data);
+            large.createFile("big");
+            large.writeFile("big", data);
+            assertArrayEquals(data, large.readFile("big"));
+            assertArrayEquals(Arrays.copyOfRange(data, 700_001, 700_101), large.readFile("big", 700_001, 100));
+
+            large.writeAt("big", 1_000_000, "patched".getBytes());
+            assertEquals("patched", new String(large.readFile("big", 1_000_000, 7)));
+        }
+    }
+
+    @Test
+    void testNewFilesGoToARunThatFits() throws Exception {
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(64 * 128))) {
+            // a, b, c, d side by side, then holes of 3 blocks (b) and 8 blocks (d, with the free tail)
+            String[] names = {"a", "b", "c", "d"};
+            int[] blocks = {10, 3, 10, 8};
+            for (int i = 0; i < names.length; i++) {
+                volume.createFile(names[i]);
+                volume.writeFile(names[i], new byte[blocks[i] * 128]);
+            }
+            volume.deleteFile("b");
+            volume.deleteFile("d");
+
+            volume.createFile("e");
+            volume.writeFile("e", new byte[3 * 128]);       // fits exactly where b was
+            volume.createFile("f");
+            volume.writeFile("f", new byte[20 * 128]);
+            AllocationStats stats = volume.getAllocationStats();
+            assertEquals(4, stats.getFiles());
+            assertEquals(1.0, stats.getExtentsPerFile());    // every file is one contiguous run
+            assertEquals(1, stats.getFreeRuns());
+            assertEquals(0.0, stats.getFreeSpaceFragmentation());
+        }
+    }
+
+    @Test
+    void testCompactionMakesFilesContiguous() throws Exception {
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(64 * 128))) {
+            // appending to two files in turn interleaves their blocks
+            volume.createFile("x");
+            volume.createFile("y");
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int i = 0; i < 8; i++) {
+                byte[] chunk = new byte[128];
+                Arrays.fill(chunk, (byte) i);
+                volume.appendFile("x", chunk);
+                volume.appendFile("y", chunk);
+                expected.write(chunk);
+            }
+            volume.deleteFile("y");
+            assertEquals(8.0, volume.getAllocationStats().getExtentsPerFile());
+
+            volume.compact();
+            assertEquals(1.0, volume.getAllocationStats().getExtentsPerFile());
+            assertArrayEquals(expected.toByteArray(), volume.readFile("x"));
+            CompactionStats stats = volume.getCompactionStats();
+            assertEquals(1, stats.getPasses());
+            assertEquals(1, stats.getFilesCompacted());
+            assertEquals(8, stats.getBlocksMoved());
+        }
+    }
+
+    @Test
+    void testDedupSharesIdenticalBlocks() throws Exception {
+        byte[] payload = new byte[10 * 128];
+        new Random(5).nextBytes(payload);
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(64 * 128).dedup(true))) {
+            volume.createFile("one");
+            volume.createFile("two");
+            volume.writeFile("one", payload);
+            volume.writeFile("two", payload);               // same contents under another name
+            DedupStats stats = volume.getDedupStats();
+            assertEquals(20, stats.getLogicalBlocks());
+            assertEquals(10, stats.getPhysicalBlocks());
+            assertEquals(10, stats.getSharedWrites());
+            assertEquals(2.0, stats.getDedupRatio());
+
+            volume.appendFile("two", "tail".getBytes());    // shared blocks are not changed in place
+            assertArrayEquals(payload, volume.readFile("one"));
+            volume.deleteFile("one");
+            assertEquals("tail", new String(volume.readFile("two", payload.length, 4)));
+        }
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(64 * 128))) {
+            // reference counts and fingerprints come back at mount
+            volume.createFile("three");
+            volume.writeFile("three", payload);
+            assertEquals(11, volume.getDedupStats().getPhysicalBlocks());  // the blocks of two, three adds none
+            assertArrayEquals(payload, volume.readFile("three"));
+        }
+    }
+
+    @Test
+    void testCompressionKeepsRangedReadsAndSkipsRandomData() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 150_000; i++) {
+            text.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        byte[] payload = text.toString().getBytes();        // three chunks of 64 KB, the last one partial
+        byte[] noise = new byte[4096];
+        new Random(3).nextBytes(noise);
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(4096 * 128).compression(true))) {
+            volume.createFile("text");
+            volume.writeFile("text", payload);
+            int rawBlocks = (payload.length + 127) / 128;
+            assertTrue(4096 - volume.getAllocationStats().getFreeBlocks() < rawBlocks / 2);
+            assertArrayEquals(payload, volume.readFile("text"));
+            // across the boundary between the first two chunks
+            assertArrayEquals(Arrays.copyOfRange(payload, 65_000, 67_000), volume.readFile("text", 65_000, 2_000));
+
+            volume.createFile("noise");
+            long before = volume.getAllocationStats().getFreeBlocks();
+            volume.writeFile("noise", noise);
+            assertEquals(noise.length / 128, before - volume.getAllocationStats().getFreeBlocks());   // stored raw
+            assertArrayEquals(noise, volume.readFile("noise"));
+
+            volume.appendFile("text", "tail".getBytes());
+            assertEquals("tail", new String(volume.readFile("text", payload.length, 4)));
+        }
+        // how a file is stored is recorded with it, not taken from the options
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(4096 * 128))) {
+            assertArrayEquals(Arrays.copyOfRange(payload, 140_000, payload.length),
+                    volume.readFile("text", 140_000, payload.length - 140_000));
+            assertArrayEquals(noise, volume.readFile("noise"));
+        }
+    }
+
+    @Test
+    void testStalledStreamDoesNotHoldTheFileLock() throws Exception {
+        try (FileSystemManager volume = openVolume(new FileSystemOptions(1024 * 128).maxFiles(200))) {
+            byte[] first = "first ".repeat(50).getBytes();
+            for (String name : new String[]{"f0", "f64", "f128"}) {     // slots sharing one lock stripe
+                volume.createFile(name);
+                volume.writeFile(name, first);
+            }
+            long freeBefore = volume.getAllocationStats().getFreeBlocks();
+            CountDownLatch streaming = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompletableFuture<Void> stream = CompletableFuture.runAsync(() -> {
+                try {
+                    volume.streamFile("f0", chunk -> {
+                        byte[] bytes = new byte[chunk.remaining()];
+                        chunk.get(bytes);
+                        out.write(bytes);
+                        streaming.countDown();
+                        try {
+                            resume.await();         // a client that stopped reading
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            assertTrue(streaming.await(5, TimeUnit.SECONDS));
+
+            // Neither the stripe's other files nor the streamed one wait for the stream
+            CompletableFuture<Void> others = CompletableFuture.runAsync(() -> {
+                try {
+                    volume.writeFile("f64", "second".getBytes());
+                    assertArrayEquals(first, volume.readFile("f128"));
+                    volume.writeFile("f0", "second".getBytes());
+                    volume.appendFile("f0", " and more".getBytes());    // not in place, the stream reads those blocks
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            others.get(5, TimeUnit.SECONDS);
+            assertEquals("second and more", new String(volume.readFile("f0")));
+
+            resume.countDown();
+            stream.get(5, TimeUnit.SECONDS);
+            assertArrayEquals(first, out.toByteArray());        // the version pinned when the stream started
+            // f0 and f64 went from 3 blocks to 1, the stream gave f0's old blocks back when it ended
+            assertEquals(freeBefore + 4, volume.getAllocationStats().getFreeBlocks());
+        }
+    }
+
+    // A volume of its own in the test's temporary directory, removed after the test. Opening it again
+    // in the same test mounts what is already there.
+    private FileSystemManager openVolume(FileSystemOptions options) throws Exception {
+        return new FileSystemManager(dir.resolve("volume.dat").toString(), options);
+    }
 }
@@ -0,0 +1,41 @@
+import ca.concordia.filesystem.datastructures.FreeBlockBitmap;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreeBlockBitmapTests {
+
+    @Test
+    void testFreeCountFollowsAllocations() {
+        FreeBlockBitmap bitmap = new FreeBlockBitmap(200);
+        assertEquals(200, bitmap.getFreeCount());
+        bitmap.allocate(10, 100);
+        assertEquals(100, bitmap.getFreeCount());
+        bitmap.free(50, 20);
+        assertEquals(120, bitmap.getFreeCount());
+    }
+
+    @Test
+    void testFindFreeSkipsFullWords() {
+        FreeBlockBitmap bitmap = new FreeBlockBitmap(10_000);
+        bitmap.allocate(0, 9_000);
+        assertEquals(9_000, bitmap.findFree(0));
+        assertEquals(10_000, bitmap.findUsed(9_000));
+        bitmap.allocate(9_000, 1_000);
+        assertEquals(-1, bitmap.findFree(0));
+    }
+
+    @Test
+    void testOnDiskForm() {
+        FreeBlockBitmap bitmap = new FreeBlockBitmap(130);
+        bitmap.allocate(0, 130);
+        bitmap.free(3, 5);
+        bitmap.free(60, 70);
+
+        FreeBlockBitmap copy = new FreeBlockBitmap(130);
+        copy.load(bitmap.toBytes(0, 16));
+        assertEquals(bitmap.getFreeCount(), copy.getFreeCount());
+        assertTrue(copy.isFree(3));
+        assertFalse(copy.isFree(8));
+    }
+}
@@ -0,0 +1,65 @@
+import ca.concordia.filesystem.datastructures.Extent;
+import ca.concordia.filesystem.datastructures.FreeBlockBitmap;
+import ca.concordia.filesystem.datastructures.FreeExtentIndex;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreeExtentIndexTests {
+
+    @Test
+    void testBestFitTakesTheSmallestRunThatFits() {
+        FreeExtentIndex index = new FreeExtentIndex(100);
+        index.allocate(0, 100);
+        index.free(10, 8);
+        index.free(40, 3);
+        index.free(60, 30);
+        Extent run = index.bestFit(3);
+        assertEquals(40, run.getStart());
+        assertEquals(3, run.getLength());
+        assertEquals(10, index.bestFit(5).getStart());
+        assertEquals(60, index.bestFit(9).getStart());
+        assertNull(index.bestFit(31));
+        assertEquals(60, index.largest().getStart());
+    }
+
+    @Test
+    void testFreeMergesWithNeighbours() {
+        FreeExtentIndex index = new FreeExtentIndex(50);
+        index.allocate(10, 30);
+        assertEquals(2, index.getRunCount());
+        assertEquals(20, index.getFreeCount());
+        index.free(20, 5);
+        assertEquals(3, index.getRunCount());
+        index.free(10, 10);                     // joins [0, 10) and [20, 25)
+        index.free(25, 15);                     // and now [40, 50)
+        assertEquals(1, index.getRunCount());
+        assertEquals(50, index.getLargestRun());
+        assertEquals(0, index.runStartingAt(0).getStart());
+        assertNull(index.runStartingAt(5));
+    }
+
+    @Test
+    void testAllocateSplitsARunAndRejectsUsedBlocks() {
+        FreeExtentIndex index = new FreeExtentIndex(30);
+        index.allocate(10, 5);
+        assertEquals(10, index.runStartingAt(0).getLength());
+        assertEquals(15, index.runStartingAt(15).getLength());
+        assertThrows(IllegalArgumentException.class, () -> index.allocate(12, 1));
+        assertThrows(IllegalArgumentException.class, () -> index.allocate(8, 4));
+    }
+
+    @Test
+    void testLoadFromBitmap() {
+        FreeBlockBitmap bitmap = new FreeBlockBitmap(200);
+        bitmap.allocate(0, 200);
+        bitmap.free(3, 5);
+        bitmap.free(64, 70);
+        FreeExtentIndex index = new FreeExtentIndex(200);
+        index.load(bitmap);
+        assertEquals(2, index.getRunCount());
+        assertEquals(75, index.getFreeCount());
+        assertEquals(64, index.largest().getStart());
+        assertEquals(70, index.getLargestRun());
+    }
+}
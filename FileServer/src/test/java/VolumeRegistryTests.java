@@ -0,0 +1,58 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
+import ca.concordia.server.VolumeRegistry;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VolumeRegistryTests {
+    static VolumeRegistry volumes;
+
+    @TempDir
+    static Path dir;                            // the volume files, removed after the tests
+
+    @BeforeAll
+    static void setup() throws Exception {
+        volumes = new VolumeRegistry();
+        volumes.mount("one", dir.resolve("volume1.dat").toString(), new FileSystemOptions(10 * 128));
+        volumes.mount("two", dir.resolve("volume2.dat").toString(), new FileSystemOptions(10 * 128));
+    }
+
+    @AfterAll
+    static void teardown() throws Exception {
+        volumes.close();
+    }
+
+    @Test
+    void testPathsAreRoutedByPrefix() throws Exception {
+        FileSystemManager one = volumes.volumeOf("one:x");
+        FileSystemManager two = volumes.volumeOf("two:x");
+        assertNotSame(one, two);
+        assertSame(one, volumes.volumeOf("x"));         // first volume mounted is the default
+        assertEquals("x", VolumeRegistry.fileNameOf("two:x"));
+        assertEquals("x", VolumeRegistry.fileNameOf("x"));
+
+        Exception ex = assertThrows(Exception.class, () -> volumes.volumeOf("three:x"));
+        assertEquals("Volume not found.", ex.getMessage());
+        assertArrayEquals(new String[]{"one", "two"}, volumes.names());
+    }
+
+    @Test
+    void testVolumesAreIndependent() throws Exception {
+        FileSystemManager one = volumes.volumeOf("one:same");
+        FileSystemManager two = volumes.volumeOf("two:same");
+        one.createFile("same");
+        two.createFile("same");                         // same name, different volume
+        one.writeFile("same", "first".getBytes());
+        two.writeFile("same", "second".getBytes());
+        assertEquals("first", new String(one.readFile("same")));
+        assertEquals("second", new String(two.readFile("same")));
+
+        one.deleteFile("same");
+        assertEquals("second", new String(two.readFile("same")));
+        two.deleteFile("same");
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.FileSystemOptions;
+import ca.concordia.filesystem.PooledBuffer;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+// Heap bytes allocated per operation by the read and write paths, measured with the JVM's
+// per-thread allocation counter. Reading into a pooled buffer should allocate close to nothing.
+// Run with: java -cp target/classes:target/test-classes benchmarks.AllocationBenchmark
+public class AllocationBenchmark {
+
+    private static final int OPS = 100_000;
+    private static final int FILE_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("bench", ".dat");
+        file.delete();                  // start from a new volume
+        file.deleteOnExit();
+        FileSystemManager fs = new FileSystemManager(file.getPath(),
+                new FileSystemOptions(16 << 20).blockSize(4096).cacheBlocks(0));
+        fs.createFile("data");
+        fs.writeFile("data", new byte[FILE_SIZE]);
+
+        for (int round = 0; round < 3; round++) {       // the first rounds warm up the JIT
+            long copy = measure(() -> fs.readFile("data"));
+            long pooled = measure(() -> {
+                try (PooledBuffer contents = fs.readFileBuffer("data")) {
+                    contents.buffer().get(0);
+                }
+            });
+            if (round == 2) {
+                System.out.printf("readFile (byte[]): %,d bytes/op%n", copy / OPS);
+                System.out.printf("readFileBuffer:    %,d bytes/op%n", pooled / OPS);
+            }
+        }
+        byte[] data = new byte[FILE_SIZE];
+        long write = 0;
+        for (int round = 0; round < 3; round++) {
+            write = measure(() -> fs.writeFile("data", data));
+        }
+        System.out.printf("writeFile:         %,d bytes/op (journal records included)%n", write / OPS);
+    }
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    private static long measure(Op op) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < OPS; i++) {
+            op.run();
+        }
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+}
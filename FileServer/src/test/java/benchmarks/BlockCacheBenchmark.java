@@ -0,0 +1,57 @@
+package benchmarks;
+
+import ca.concordia.filesystem.datastructures.BlockCache;
+import ca.concordia.filesystem.storage.BlockStore;
+import ca.concordia.filesystem.storage.StorageMode;
+
+import java.io.File;
+import java.util.Random;
+
+// Read latency of a small hot set served by the block cache compared with the storage backend,
+// while one block in ten is a one-time read that must not push the hot set out.
+// Run with: java -cp target/classes:target/test-classes benchmarks.BlockCacheBenchmark
+public class BlockCacheBenchmark {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 16 * 1024;        // 64 MB volume
+    private static final int HOT_BLOCKS = 512;
+    private static final int CACHE_BLOCKS = 1024;
+    private static final int OPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("bench", ".dat");
+        file.deleteOnExit();
+        try (BlockStore store = StorageMode.FILE_CHANNEL.open(file.getPath(), (long) BLOCKS * BLOCK_SIZE)) {
+            byte[] block = new byte[BLOCK_SIZE];
+            for (int i = 0; i < BLOCKS; i++) {
+                store.write((long) i * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+            }
+            for (int round = 0; round < 3; round++) {       // the first rounds warm up the JIT
+                BlockCache cache = new BlockCache(CACHE_BLOCKS, BLOCK_SIZE);
+                long direct = run(store, null);
+                long cached = run(store, cache);
+                if (round == 2) {
+                    System.out.printf("store only: %.1f ns/read, with cache: %.1f ns/read (%d hits, %d misses, %d evictions)%n",
+                            (double) direct / OPS, (double) cached / OPS,
+                            cache.getHits(), cache.getMisses(), cache.getEvictions());
+                }
+            }
+        }
+    }
+
+    private static long run(BlockStore store, BlockCache cache) throws Exception {
+        Random random = new Random(42);
+        byte[] block = new byte[BLOCK_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            int index = i % 10 == 0 ? HOT_BLOCKS + random.nextInt(BLOCKS - HOT_BLOCKS) : random.nextInt(HOT_BLOCKS);
+            if (cache == null || !cache.read(index, block, 0, BLOCK_SIZE)) {
+                store.read((long) index * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+                if (cache != null) {
+                    cache.put(index, block, 0, BLOCK_SIZE);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import ca.concordia.filesystem.storage.BlockStore;
+import ca.concordia.filesystem.storage.StorageMode;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Compares per-block read/write latency of the storage backends,
+// and how random block reads scale when several threads read at the same time.
+// Run with: java -cp target/classes:target/test-classes benchmarks.BlockStoreBenchmark
+public class BlockStoreBenchmark {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int BLOCKS = 64 * 1024;        // 8 MB volume
+    private static final int OPS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            File file = File.createTempFile("bench", ".dat");
+            file.deleteOnExit();
+            try (BlockStore store = mode.open(file.getPath(), (long) BLOCKS * BLOCK_SIZE)) {
+                byte[] block = new byte[BLOCK_SIZE];
+                for (int i = 0; i < BLOCKS; i++) {
+                    store.write((long) i * BLOCK_SIZE, block, 0, BLOCK_SIZE);   // fill the volume, also warms up
+                }
+                run(store, mode + " write", true);
+                run(store, mode + " read ", false);
+                runConcurrentReads(store, mode.toString());
+            }
+        }
+    }
+
+    private static void run(BlockStore store, String label, boolean write) throws Exception {
+        Random random = new Random(42);
+        byte[] block = new byte[BLOCK_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            long position = (long) random.nextInt(BLOCKS) * BLOCK_SIZE;
+            if (write) {
+                store.write(position, block, 0, BLOCK_SIZE);
+            } else {
+                store.read(position, block, 0, BLOCK_SIZE);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %.1f ns/op%n", label, (double) elapsed / OPS);
+    }
+
+    private static void runConcurrentReads(BlockStore store, String label) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Future<?>[] results = new Future<?>[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            results[t] = pool.submit(() -> {
+                Random random = new Random(seed);
+                byte[] block = new byte[BLOCK_SIZE];
+                for (int i = 0; i < OPS; i++) {
+                    store.read((long) random.nextInt(BLOCKS) * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+                }
+                return null;
+            });
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        System.out.printf("%s read x%d threads: %.2f Mops/s%n", label, threads, (double) threads * OPS * 1000 / elapsed);
+    }
+}
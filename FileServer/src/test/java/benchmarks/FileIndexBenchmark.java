@@ -0,0 +1,42 @@
+package benchmarks;
+
+import ca.concordia.filesystem.datastructures.FileIndex;
+
+// Lookup, insert and delete cost of the filename index as the number of files grows.
+// The cost per operation should stay flat from a thousand to a million entries.
+// Run with: java -cp target/classes:target/test-classes benchmarks.FileIndexBenchmark
+public class FileIndexBenchmark {
+
+    public static void main(String[] args) {
+        for (int files : new int[]{1_000, 100_000, 1_000_000}) {
+            String[] names = new String[files];
+            for (int i = 0; i < files; i++) {
+                names[i] = "f" + Integer.toString(i, 36);
+            }
+            for (int round = 0; round < 3; round++) {       // the first rounds warm up the JIT
+                FileIndex index = new FileIndex(files);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < files; i++) {
+                    index.put(names[i], i);
+                }
+                long created = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < files; i++) {
+                    sum += index.get(names[i]);
+                }
+                long looked = System.nanoTime();
+                for (int i = 0; i < files; i++) {
+                    index.remove(names[i]);
+                }
+                long deleted = System.nanoTime();
+
+                if (round == 2) {
+                    System.out.printf("%,9d files: create %.0f ns, lookup %.0f ns, delete %.0f ns (checksum %d)%n",
+                            files, (double) (created - start) / files, (double) (looked - created) / files,
+                            (double) (deleted - looked) / files, sum);
+                }
+            }
+        }
+    }
+}
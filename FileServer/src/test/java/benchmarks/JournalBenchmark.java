@@ -0,0 +1,50 @@
+package benchmarks;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Measures how many metadata operations group commit puts in one journal flush.
+// Several threads rewrite their own file in a loop; every write is durable when it returns.
+// Run with: java -cp target/classes:target/test-classes benchmarks.JournalBenchmark [threads]
+public class JournalBenchmark {
+
+    private static final int OPS_PER_THREAD = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        File file = File.createTempFile("journal", ".dat");
+        file.delete();
+        file.deleteOnExit();
+        FileSystemManager fs = new FileSystemManager(file.getPath(), 10 * 128);
+
+        for (int t = 0; t < threads; t++) {
+            fs.createFile("f" + t);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Future<?>[] results = new Future<?>[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final String name = "f" + t;
+            results[t] = pool.submit(() -> {
+                byte[] data = name.getBytes();
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    fs.writeFile(name, data);
+                }
+                return null;
+            });
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        System.out.printf("%d threads: %.0f durable writes/s, %s%n",
+                threads, (double) threads * OPS_PER_THREAD * 1e9 / elapsed, fs.getJournalStats());
+    }
+}